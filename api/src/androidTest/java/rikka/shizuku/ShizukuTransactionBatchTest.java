@@ -0,0 +1,122 @@
+package rikka.shizuku;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trip of {@link ShizukuApiConstants#BINDER_TRANSACTION_transactBatch}, the server side is done by
+ * {@link #executeBatch(Parcel, Parcel)} which follows the layout documented there. Runs on device since it needs
+ * the real {@link Parcel}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ShizukuTransactionBatchTest {
+
+    private static final String DESCRIPTOR = "rikka.shizuku.ITest";
+
+    /**
+     * Server side of the batch, each call replies its code and the string it receives.
+     */
+    private static void executeBatch(Parcel data, Parcel reply) {
+        data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+        int count = data.readInt();
+
+        reply.writeNoException();
+        for (int i = 0; i < count; i++) {
+            IBinder binder = data.readStrongBinder();
+            int code = data.readInt();
+            int size = data.readInt();
+            int position = data.dataPosition();
+
+            Parcel callData = Parcel.obtain();
+            Parcel callReply = Parcel.obtain();
+            try {
+                callData.appendFrom(data, position, size);
+                callData.setDataPosition(0);
+                data.setDataPosition(position + size);
+
+                callData.enforceInterface(DESCRIPTOR);
+                callReply.writeNoException();
+                callReply.writeInt(code);
+                callReply.writeString(callData.readString());
+                callReply.writeStrongBinder(binder);
+
+                reply.writeInt(callReply.dataSize());
+                reply.appendFrom(callReply, 0, callReply.dataSize());
+            } finally {
+                callData.recycle();
+                callReply.recycle();
+            }
+        }
+    }
+
+    @Test
+    public void batchRoundTrip() {
+        IBinder[] binders = {new Binder(), new Binder(), new Binder()};
+        String[] args = {"", "a", "odd length string to check padding"};
+
+        ShizukuTransactionBatch batch = new ShizukuTransactionBatch();
+        for (int i = 0; i < binders.length; i++) {
+            Parcel callData = batch.add(binders[i], IBinder.FIRST_CALL_TRANSACTION + i);
+            callData.writeInterfaceToken(DESCRIPTOR);
+            callData.writeString(args[i]);
+        }
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        Parcel[] replies = new Parcel[binders.length];
+        try {
+            batch.writeBatch(data);
+            data.setDataPosition(0);
+            executeBatch(data, reply);
+            assertEquals(data.dataSize(), data.dataPosition());
+
+            reply.setDataPosition(0);
+            ShizukuTransactionBatch.readReplies(reply, replies);
+            assertEquals(reply.dataSize(), reply.dataPosition());
+
+            for (int i = 0; i < replies.length; i++) {
+                replies[i].readException();
+                assertEquals(IBinder.FIRST_CALL_TRANSACTION + i, replies[i].readInt());
+                assertEquals(args[i], replies[i].readString());
+                assertSame(binders[i], replies[i].readStrongBinder());
+            }
+        } finally {
+            batch.recycle();
+            data.recycle();
+            reply.recycle();
+            for (Parcel p : replies) {
+                if (p != null) {
+                    p.recycle();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectedBatchThrows() {
+        Parcel reply = Parcel.obtain();
+        Parcel[] replies = new Parcel[2];
+        try {
+            reply.writeException(new SecurityException("not permitted"));
+            reply.setDataPosition(0);
+            ShizukuTransactionBatch.readReplies(reply, replies);
+            fail("SecurityException expected");
+        } catch (SecurityException e) {
+            assertEquals("not permitted", e.getMessage());
+            assertNull(replies[0]);
+        } finally {
+            reply.recycle();
+        }
+    }
+}
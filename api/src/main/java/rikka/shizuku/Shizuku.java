@@ -8,6 +8,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -18,7 +19,18 @@ import androidx.annotation.RestrictTo;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
-
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import moe.shizuku.server.IRemoteProcess;
 import moe.shizuku.server.IShizukuApplication;
 import moe.shizuku.server.IShizukuService;
 
@@ -94,7 +106,7 @@ public class Shizuku {
                 binder.unlinkToDeath(DEATH_RECIPIENT, 0);
             }
             binder = newBinder;
-            service = IShizukuService.Stub.asInterface(newBinder);
+            service = IShizukuService.Stub.asInterface(ShizukuMetrics.wrapBinder(newBinder, ShizukuApiConstants.BINDER_DESCRIPTOR));
 
             try {
                 binder.linkToDeath(DEATH_RECIPIENT, 0);
@@ -105,8 +117,8 @@ public class Shizuku {
             try {
                 //service.attachApplication(SHIZUKU_APPLICATION, packageName);
 
-                Parcel data = Parcel.obtain();
-                Parcel reply = Parcel.obtain();
+                Parcel data = ShizukuParcelPool.obtain();
+                Parcel reply = ShizukuParcelPool.obtain();
                 try {
                     data.writeInterfaceToken("moe.shizuku.server.IShizukuService");
                     data.writeStrongBinder(SHIZUKU_APPLICATION.asBinder());
@@ -114,8 +126,8 @@ public class Shizuku {
                     preV11 = !binder.transact(14 /*IShizukuService.Stub.TRANSACTION_attachApplication*/, data, reply, 0);
                     reply.readException();
                 } finally {
-                    reply.recycle();
-                    data.recycle();
+                    ShizukuParcelPool.recycle(reply);
+                    ShizukuParcelPool.recycle(data);
                 }
 
                 Log.i("ShizukuApplication", "attachApplication");
@@ -142,6 +154,17 @@ public class Shizuku {
         void onRequestPermissionResult(int requestCode, int grantResult);
     }
 
+    public interface OnFileTransferProgressListener {
+
+        /**
+         * Called when a part of the file is transferred. This is called from a binder thread or a background thread.
+         *
+         * @param transferred bytes transferred
+         * @param total       total bytes, or -1 if the size of source is unknown (e.g., a pipe)
+         */
+        void onProgress(long transferred, long total);
+    }
+
     private static final List<OnBinderReceivedListener> RECEIVED_LISTENERS = new CopyOnWriteArrayList<>();
     private static final List<OnBinderDeadListener> DEAD_LISTENERS = new CopyOnWriteArrayList<>();
     private static final List<OnRequestPermissionResultListener> PERMISSION_LISTENERS = new CopyOnWriteArrayList<>();
@@ -319,8 +342,195 @@ public class Shizuku {
      * @see rikka.shizuku.SystemServiceHelper#obtainParcel(String, String, String, String)
      */
     public static void transactRemote(@NonNull Parcel data, @Nullable Parcel reply, int flags) {
+        transactRemote(data, reply, flags, null, 0);
+    }
+
+    /**
+     * Same to {@link #transactRemote(Parcel, Parcel, int)}, descriptor and code of the target binder are
+     * only used by {@link ShizukuMetricsListener}.
+     *
+     * @param descriptor interface descriptor of the target binder, or <code>null</code> if unknown
+     * @param code       transaction code of the target binder, or <code>0</code> if unknown
+     * @since added from version 13
+     */
+    public static void transactRemote(@NonNull Parcel data, @Nullable Parcel reply, int flags, @Nullable String descriptor, int code) {
+        IBinder binder = requireService().asBinder();
+        if (!ShizukuMetrics.isEnabled()) {
+            try {
+                binder.transact(ShizukuApiConstants.BINDER_TRANSACTION_transact, data, reply, flags);
+            } catch (RemoteException e) {
+                throw rethrowAsRuntimeException(e);
+            }
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            binder.transact(ShizukuApiConstants.BINDER_TRANSACTION_transact, data, reply, flags);
+        } catch (RemoteException e) {
+            throw rethrowAsRuntimeException(e);
+        } finally {
+            ShizukuMetrics.report(descriptor, code, start, data, reply);
+        }
+    }
+
+    /**
+     * Set a listener which is called after every binder call made through {@link Shizuku},
+     * {@link ShizukuBinderWrapper} and proxies generated from {@link rikka.shizuku.annotation.ShizukuSystemService}.
+     * <p>When no listener is set, binders are not wrapped, and the overhead is a single volatile read per call.
+     * Remote processes are reported if they are started while a listener is set.</p>
+     *
+     * @param listener listener, or <code>null</code> to remove the listener
+     * @since added from version 13
+     */
+    public static void setMetricsListener(@Nullable ShizukuMetricsListener listener) {
+        ShizukuMetrics.setListener(listener);
+
+        // Wrap or unwrap the binder of the remote service
+        IBinder binder = Shizuku.binder;
+        if (binder != null) {
+            service = IShizukuService.Stub.asInterface(ShizukuMetrics.wrapBinder(binder, ShizukuApiConstants.BINDER_DESCRIPTOR));
+        }
+    }
+
+    private static final int BINDER_CALL_THREADS = 4;
+
+    private static Executor binderCallExecutor;
+    private static ScheduledExecutorService timeoutExecutor;
+
+    private static synchronized Executor getBinderCallExecutor() {
+        if (binderCallExecutor == null) {
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    BINDER_CALL_THREADS, BINDER_CALL_THREADS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "ShizukuBinderCall-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            binderCallExecutor = executor;
+        }
+        return binderCallExecutor;
+    }
+
+    private static synchronized ScheduledExecutorService getTimeoutExecutor() {
+        if (timeoutExecutor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "ShizukuBinderCallTimeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            timeoutExecutor = executor;
+        }
+        return timeoutExecutor;
+    }
+
+    /**
+     * Set the executor used by {@link #transactRemoteAsync(Parcel, int, long)}.
+     * <p>By default, a pool of 4 threads is used.</p>
+     *
+     * @param executor executor, or <code>null</code> to use the default one
+     * @since added from version 13
+     */
+    public static synchronized void setBinderCallExecutor(@Nullable Executor executor) {
+        binderCallExecutor = executor;
+    }
+
+    /**
+     * Same to {@link #transactRemoteAsync(Parcel, int, long)} without timeout.
+     *
+     * @since added from version 13
+     */
+    @NonNull
+    public static ShizukuFuture<Parcel> transactRemoteAsync(@NonNull Parcel data, int flags) {
+        return transactRemoteAsync(data, flags, 0);
+    }
+
+    /**
+     * Asynchronous version of {@link #transactRemote(Parcel, Parcel, int)}, the call is made in the executor set by
+     * {@link #setBinderCallExecutor(Executor)}.
+     * <p>Note:</p>
+     * <ul>
+     * <li>The data parcel is owned by this method and will be recycled after the call.</li>
+     * <li>The result of the returned future is the reply parcel, the caller must recycle it.
+     * For oneway calls, the result is <code>null</code>.</li>
+     * <li>Binder calls can't be interrupted. If the future is cancelled or timed out after the call is started,
+     * the call will finish in background and the reply will be discarded.</li>
+     * </ul>
+     *
+     * @param data    data parcel
+     * @param flags   flags of the binder call
+     * @param timeout timeout in milliseconds, the future fails with {@link java.util.concurrent.TimeoutException}
+     *                when it is reached, 0 for no timeout
+     * @return future of the reply parcel
+     * @since added from version 13
+     */
+    @NonNull
+    public static ShizukuFuture<Parcel> transactRemoteAsync(@NonNull Parcel data, int flags, long timeout) {
+        ShizukuFuture<Parcel> future = new ShizukuFuture<>();
+
+        Runnable task = () -> {
+            if (future.isDone()) {
+                data.recycle();
+                return;
+            }
+
+            Parcel reply = (flags & IBinder.FLAG_ONEWAY) == 0 ? Parcel.obtain() : null;
+            try {
+                transactRemote(data, reply, flags);
+            } catch (Throwable e) {
+                if (reply != null) {
+                    reply.recycle();
+                }
+                future.completeExceptionally(e);
+                return;
+            } finally {
+                data.recycle();
+            }
+
+            if (!future.complete(reply) && reply != null) {
+                reply.recycle();
+            }
+        };
+
+        try {
+            getBinderCallExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            data.recycle();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        if (timeout > 0) {
+            ScheduledFuture<?> timeoutFuture = getTimeoutExecutor().schedule(
+                    () -> future.completeExceptionally(new TimeoutException("binder call timed out after " + timeout + "ms")),
+                    timeout, TimeUnit.MILLISECONDS);
+
+            future.addCallback(new ShizukuFuture.Callback<Parcel>() {
+                @Override
+                public void onResult(@Nullable Parcel result) {
+                    timeoutFuture.cancel(false);
+                }
+
+                @Override
+                public void onError(@NonNull Throwable error) {
+                    timeoutFuture.cancel(false);
+                }
+            }, null);
+        }
+        return future;
+    }
+
+    /**
+     * Call {@link ShizukuApiConstants#BINDER_TRANSACTION_transactBatch} at remote service.
+     *
+     * @return false if the remote service does not support batch transaction
+     * @see ShizukuTransactionBatch
+     */
+    static boolean transactRemoteBatch(@NonNull Parcel data, @NonNull Parcel reply) {
         try {
-            requireService().asBinder().transact(ShizukuApiConstants.BINDER_TRANSACTION_transact, data, reply, flags);
+            return requireService().asBinder().transact(ShizukuApiConstants.BINDER_TRANSACTION_transactBatch, data, reply, 0);
         } catch (RemoteException e) {
             throw rethrowAsRuntimeException(e);
         }
@@ -341,12 +551,126 @@ public class Shizuku {
      */
     public static ShizukuRemoteProcess newProcess(@NonNull String[] cmd, @Nullable String[] env, @Nullable String dir) {
         try {
-            return new ShizukuRemoteProcess(requireService().newProcess(cmd, env, dir));
+            return new ShizukuRemoteProcess(requireService().newProcess(cmd, env, dir), false, cmd, false);
+        } catch (RemoteException e) {
+            throw rethrowAsRuntimeException(e);
+        }
+    }
+
+    /**
+     * Start a new process at remote service with options.
+     * <p>
+     * If the remote service does not support options (below version 13, or a server reporting version 13 without
+     * this feature), options are implemented by running the command from <code>sh</code>
+     * (<code>2&gt;&amp;1</code>, <code>ulimit -t</code>, <code>nice</code> and writing to <code>cgroup.procs</code>).
+     * <p>
+     * If {@link ShizukuRemoteProcess#setMaxLiveProcesses(int, long)} is used, this method may block until a live
+     * process exits.
+     *
+     * @return RemoteProcess holds the binder of remote process
+     * @throws IllegalStateException if the limit of live processes is reached and no process exits before the
+     *                               timeout, if interrupted while waiting, or if the remote service returned no
+     *                               process
+     * @see Shizuku#newProcess(String[], String[], String)
+     * @since added from version 13
+     */
+    public static ShizukuRemoteProcess newProcess(@NonNull ProcessArgs args) {
+        // Blocks if the limit of live processes is reached
+        ShizukuRemoteProcess.acquireSlot();
+
+        boolean started = false;
+        try {
+            IRemoteProcess remote = null;
+            if (args.hasOptions()) {
+                remote = transactNewProcessWithOptions(args);
+            }
+            if (remote == null) {
+                remote = requireService().newProcess(args.toLegacyCommand(), args.env, args.dir);
+            }
+            if (remote == null) {
+                throw new IllegalStateException("remote service returned no process");
+            }
+            // The slot is owned by the process from now on
+            ShizukuRemoteProcess process = new ShizukuRemoteProcess(remote, args.redirectErrorStream, args.cmd, true);
+            started = true;
+            return process;
         } catch (RemoteException e) {
             throw rethrowAsRuntimeException(e);
+        } finally {
+            if (!started) {
+                ShizukuRemoteProcess.releaseSlot();
+            }
         }
     }
 
+    /**
+     * Call newProcessWithOptions with a raw transaction, so that it can be told if the remote service knows it, as a
+     * server reporting version 13 may not implement it.
+     *
+     * @return the process, or null if the remote service doesn't support options
+     * @throws IllegalStateException if the remote service supports options but returned no process, options must
+     *                               not be silently dropped by falling back to sh in this case
+     */
+    @Nullable
+    private static IRemoteProcess transactNewProcessWithOptions(@NonNull ProcessArgs args) throws RemoteException {
+        IBinder binder = requireService().asBinder();
+        Bundle options = args.toBundle();
+        Parcel data = ShizukuParcelPool.obtain();
+        Parcel reply = ShizukuParcelPool.obtain();
+        try {
+            data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            data.writeStringArray(args.cmd);
+            data.writeStringArray(args.env);
+            data.writeString(args.dir);
+            data.writeInt(1);
+            options.writeToParcel(data, 0);
+            if (!binder.transact(19 /*IShizukuService.Stub.TRANSACTION_newProcessWithOptions*/, data, reply, 0)) {
+                return null;
+            }
+            reply.readException();
+            IRemoteProcess remote = IRemoteProcess.Stub.asInterface(reply.readStrongBinder());
+            if (remote == null) {
+                throw new IllegalStateException("remote service returned no process for options " + options);
+            }
+            return remote;
+        } finally {
+            ShizukuParcelPool.recycle(data);
+            ShizukuParcelPool.recycle(reply);
+        }
+    }
+
+    /**
+     * Copy data from the source to a file at remote service, see
+     * {@link #copyFile(ParcelFileDescriptor, String, int, OnFileTransferProgressListener)}.
+     *
+     * @since added from version 13
+     */
+    @NonNull
+    public static ShizukuFuture<Long> copyFile(@NonNull ParcelFileDescriptor source, @NonNull String destination,
+                                               @Nullable OnFileTransferProgressListener listener) {
+        return copyFile(source, destination, -1, listener);
+    }
+
+    /**
+     * Copy data from the source to a file at remote service, such as a location the app can't write.
+     * <p>
+     * If the remote service implements it, it reads the source fd and writes to the destination directly, data does
+     * not go through the app process. If the remote service does not support it (below version 13, or a server reporting version 13 without this
+     * feature), data is written to <code>cat</code> started by {@link #newProcess(ProcessArgs)}.
+     *
+     * @param source      source, such as a file or the read side of a pipe, it is closed by this method
+     * @param destination path of the destination file, it is created or truncated
+     * @param mode        permission bits of the destination file, or -1 to keep the default
+     * @param listener    progress listener
+     * @return future of the number of bytes copied, it fails with {@link java.io.IOException} if the copy fails
+     * @since added from version 13
+     */
+    @NonNull
+    public static ShizukuFuture<Long> copyFile(@NonNull ParcelFileDescriptor source, @NonNull String destination, int mode,
+                                               @Nullable OnFileTransferProgressListener listener) {
+        return ShizukuFileTransfer.copyFile(requireService(), source, destination, mode, listener);
+    }
+
     /**
      * Returns uid of remote service.
      *
@@ -437,6 +761,144 @@ public class Shizuku {
         return serverContext;
     }
 
+    /**
+     * Arguments of {@link Shizuku#newProcess(ProcessArgs)}.
+     *
+     * @since added from version 13
+     */
+    public static class ProcessArgs {
+
+        final String[] cmd;
+        String[] env;
+        String dir;
+        boolean redirectErrorStream = false;
+        int cpuTimeLimit = 0;
+        int nice = 0;
+        String cgroup;
+
+        public ProcessArgs(@NonNull String[] cmd) {
+            this.cmd = Objects.requireNonNull(cmd);
+        }
+
+        /**
+         * Set environment variables of the process, in the form of <code>name=value</code>.
+         *
+         * @param env Environment variables
+         */
+        public ProcessArgs env(@Nullable String[] env) {
+            this.env = env;
+            return this;
+        }
+
+        /**
+         * Set working directory of the process.
+         *
+         * @param dir Working directory
+         */
+        public ProcessArgs dir(@Nullable String dir) {
+            this.dir = dir;
+            return this;
+        }
+
+        /**
+         * Merge stderr into stdout at remote side, like {@link ProcessBuilder#redirectErrorStream(boolean)}.
+         * <p>Only one stream needs to be drained, and {@link ShizukuRemoteProcess#getErrorStream()} returns an empty
+         * stream.
+         *
+         * @param redirectErrorStream Redirect error stream
+         */
+        public ProcessArgs redirectErrorStream(boolean redirectErrorStream) {
+            this.redirectErrorStream = redirectErrorStream;
+            return this;
+        }
+
+        /**
+         * Limit CPU time of the process, the process is killed by <code>SIGXCPU</code> when the limit is reached.
+         *
+         * @param seconds CPU time in seconds, or 0 for no limit
+         */
+        public ProcessArgs cpuTimeLimit(int seconds) {
+            this.cpuTimeLimit = seconds;
+            return this;
+        }
+
+        /**
+         * Set nice value of the process, higher value means lower priority.
+         *
+         * @param nice Nice value, from -20 to 19
+         */
+        public ProcessArgs nice(int nice) {
+            this.nice = nice;
+            return this;
+        }
+
+        /**
+         * Move the process to a cgroup before it starts, such as <code>/dev/cpuctl/background</code>.
+         *
+         * @param cgroup Path of the cgroup directory
+         */
+        public ProcessArgs cgroup(@Nullable String cgroup) {
+            this.cgroup = cgroup;
+            return this;
+        }
+
+        boolean hasOptions() {
+            return redirectErrorStream || cpuTimeLimit > 0 || nice != 0 || cgroup != null;
+        }
+
+        Bundle toBundle() {
+            Bundle options = new Bundle();
+            options.putBoolean(ShizukuApiConstants.PROCESS_ARG_REDIRECT_ERROR_STREAM, redirectErrorStream);
+            if (cpuTimeLimit > 0) {
+                options.putInt(ShizukuApiConstants.PROCESS_ARG_CPU_TIME_LIMIT, cpuTimeLimit);
+            }
+            if (nice != 0) {
+                options.putInt(ShizukuApiConstants.PROCESS_ARG_NICE, nice);
+            }
+            if (cgroup != null) {
+                options.putString(ShizukuApiConstants.PROCESS_ARG_CGROUP, cgroup);
+            }
+            return options;
+        }
+
+        /**
+         * Wrap the command with <code>sh</code> to apply options for remote service below version 13.
+         */
+        String[] toLegacyCommand() {
+            if (!hasOptions()) {
+                return cmd;
+            }
+
+            StringBuilder script = new StringBuilder();
+            if (cgroup != null) {
+                script.append("echo $$ > ").append(quote(cgroup + "/cgroup.procs")).append(" && ");
+            }
+            if (cpuTimeLimit > 0) {
+                script.append("ulimit -t ").append(cpuTimeLimit).append(" && ");
+            }
+            script.append("exec ");
+            if (nice != 0) {
+                script.append("nice -n ").append(nice).append(' ');
+            }
+            script.append("\"$@\"");
+            if (redirectErrorStream) {
+                script.append(" 2>&1");
+            }
+
+            String[] legacyCmd = new String[cmd.length + 4];
+            legacyCmd[0] = "sh";
+            legacyCmd[1] = "-c";
+            legacyCmd[2] = script.toString();
+            legacyCmd[3] = "sh";
+            System.arraycopy(cmd, 0, legacyCmd, 4, cmd.length);
+            return legacyCmd;
+        }
+
+        private static String quote(String s) {
+            return "'" + s.replace("'", "'\\''") + "'";
+        }
+    }
+
     public static class UserServiceArgs {
 
         final ComponentName componentName;
@@ -4,11 +4,13 @@ import android.os.IBinder;
 import android.os.IInterface;
 import android.os.Parcel;
 import android.os.RemoteException;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.FileDescriptor;
+import java.util.ArrayDeque;
 import java.util.Objects;
 
 /**
@@ -20,27 +22,191 @@ import java.util.Objects;
  */
 public class ShizukuBinderWrapper implements IBinder {
 
+    private static final String TAG = "ShizukuBinderWrapper";
+
     private final IBinder original;
+    private final boolean async;
+    private volatile long asyncTimeout;
+
+    // Only requested when metrics is enabled
+    private volatile String descriptor;
+
+    // Async calls waiting for the previous call to finish, guarded by itself
+    private final ArrayDeque<AsyncCall> asyncCalls = new ArrayDeque<>();
+    private boolean asyncCallRunning;
+
+    private static class AsyncCall {
+
+        final int code;
+        final Parcel data;
+        final int flags;
+        final long timeout;
+
+        AsyncCall(int code, Parcel data, int flags, long timeout) {
+            this.code = code;
+            this.data = data;
+            this.flags = flags;
+            this.timeout = timeout;
+        }
+    }
 
     public ShizukuBinderWrapper(@NonNull IBinder original) {
+        this(original, false);
+    }
+
+    /**
+     * Create a binder wrapper.
+     * <p>
+     * If <code>async</code> is true, calls are dispatched by {@link Shizuku#transactRemoteAsync(Parcel, int, long)}
+     * and {@link #transact(int, Parcel, Parcel, int)} returns immediately. This can only be used for
+     * <code>oneway</code> methods, which have no reply, other calls fail with {@link IllegalArgumentException}.
+     * Errors are logged and dropped.
+     * <p>
+     * Async calls of the same wrapper are sent one by one in the order they are made, so they reach the remote
+     * service in order, unless a call times out (see {@link #setAsyncTimeout(long)}). Calls of different wrappers
+     * are not ordered.
+     *
+     * @param original binder to wrap
+     * @param async    if calls are dispatched asynchronously
+     * @since added from version 13
+     */
+    public ShizukuBinderWrapper(@NonNull IBinder original, boolean async) {
         this.original = Objects.requireNonNull(original);
+        this.async = async;
+    }
+
+    /**
+     * Set the timeout of async calls made after this method is called. When a call times out, it's logged and the
+     * next call is sent without waiting for it.
+     *
+     * @param timeout timeout in milliseconds, 0 for no timeout (default)
+     * @since added from version 13
+     */
+    public void setAsyncTimeout(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        this.asyncTimeout = timeout;
+    }
+
+    /**
+     * Obtain a new data parcel which already contains the header required by
+     * {@link Shizuku#transactRemote(Parcel, Parcel, int)}.
+     * <p>
+     * Write the interface token and the data of the binder call directly to the returned parcel, and send it with
+     * {@link Shizuku#transactRemote(Parcel, Parcel, int)}. Compared to {@link #transact(int, Parcel, Parcel, int)},
+     * the data is not copied to another parcel before sending.
+     *
+     * @param code transact code you want to use
+     * @return data parcel
+     * @since added from version 13
+     */
+    @NonNull
+    public Parcel obtainData(int code) {
+        Parcel data = Parcel.obtain();
+        writeHeader(data, code);
+        return data;
+    }
+
+    private void writeHeader(@NonNull Parcel data, int code) {
+        data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+        data.writeStrongBinder(original);
+        data.writeInt(code);
     }
 
     @Override
     public boolean transact(int code, @NonNull Parcel data, @Nullable Parcel reply, int flags) throws RemoteException {
-        Parcel newData = Parcel.obtain();
+        if (async) {
+            // A reply can't be delivered, don't let callers read an empty one as a result
+            if (reply != null || (flags & FLAG_ONEWAY) == 0) {
+                throw new IllegalArgumentException("async ShizukuBinderWrapper only supports oneway calls, code=" + code);
+            }
+            transactAsync(code, data, flags);
+            return true;
+        }
+
+        Parcel newData = ShizukuParcelPool.obtain();
         try {
-            newData.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
-            newData.writeStrongBinder(original);
-            newData.writeInt(code);
+            writeHeader(newData, code);
+            // Grow once to the final size, instead of reallocating while appending large data
+            newData.setDataCapacity(newData.dataSize() + data.dataSize());
             newData.appendFrom(data, 0, data.dataSize());
-            Shizuku.transactRemote(newData, reply, flags);
+            if (ShizukuMetrics.isEnabled()) {
+                Shizuku.transactRemote(newData, reply, flags, getDescriptorForMetrics(), code);
+            } else {
+                Shizuku.transactRemote(newData, reply, flags);
+            }
         } finally {
-            newData.recycle();
+            ShizukuParcelPool.recycle(newData);
         }
         return true;
     }
 
+    private String getDescriptorForMetrics() {
+        if (descriptor == null) {
+            try {
+                descriptor = original.getInterfaceDescriptor();
+            } catch (Throwable e) {
+                Log.w(TAG, "getInterfaceDescriptor", e);
+                descriptor = "";
+            }
+        }
+        return descriptor.isEmpty() ? null : descriptor;
+    }
+
+    private void transactAsync(int code, @NonNull Parcel data, int flags) {
+        // The parcel is used in another thread, so it can't come from ShizukuParcelPool
+        Parcel newData = obtainData(code);
+        newData.appendFrom(data, 0, data.dataSize());
+
+        AsyncCall call = new AsyncCall(code, newData, flags, asyncTimeout);
+        synchronized (asyncCalls) {
+            // The executor has multiple threads, so the next call is only sent after the previous one is finished
+            if (asyncCallRunning) {
+                asyncCalls.add(call);
+                return;
+            }
+            asyncCallRunning = true;
+        }
+        sendAsync(call);
+    }
+
+    private void sendAsync(@NonNull AsyncCall call) {
+        Shizuku.transactRemoteAsync(call.data, call.flags, call.timeout).addCallback(new ShizukuFuture.Callback<Parcel>() {
+            @Override
+            public void onResult(@Nullable Parcel result) {
+                if (result != null) {
+                    try {
+                        result.readException();
+                    } catch (Throwable e) {
+                        Log.w(TAG, "async transact " + call.code, e);
+                    } finally {
+                        result.recycle();
+                    }
+                }
+                sendNextAsync();
+            }
+
+            @Override
+            public void onError(@NonNull Throwable error) {
+                Log.w(TAG, "async transact " + call.code, error);
+                sendNextAsync();
+            }
+        }, null);
+    }
+
+    private void sendNextAsync() {
+        AsyncCall next;
+        synchronized (asyncCalls) {
+            next = asyncCalls.poll();
+            if (next == null) {
+                asyncCallRunning = false;
+                return;
+            }
+        }
+        sendAsync(next);
+    }
+
     @Nullable
     @Override
     public String getInterfaceDescriptor() throws RemoteException {
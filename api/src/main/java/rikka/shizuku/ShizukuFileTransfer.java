@@ -0,0 +1,187 @@
+package rikka.shizuku;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import moe.shizuku.server.IFileTransferCallback;
+import moe.shizuku.server.IShizukuService;
+
+/**
+ * Implementation of {@link Shizuku#copyFile(ParcelFileDescriptor, String, int, Shizuku.OnFileTransferProgressListener)}.
+ */
+class ShizukuFileTransfer {
+
+    private static final String TAG = "ShizukuFileTransfer";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Id of copyFile in IShizukuService.aidl
+    private static final int TRANSACTION_copyFile = IBinder.FIRST_CALL_TRANSACTION + 19;
+
+    static ShizukuFuture<Long> copyFile(@NonNull IShizukuService service, @NonNull ParcelFileDescriptor source,
+                                        @NonNull String destination, int mode,
+                                        @Nullable Shizuku.OnFileTransferProgressListener listener) {
+        ShizukuFuture<Long> future = new ShizukuFuture<>();
+        IBinder binder = service.asBinder();
+        IBinder.DeathRecipient deathRecipient = () -> future.completeExceptionally(new IOException("remote service is dead"));
+
+        IFileTransferCallback callback = new IFileTransferCallback.Stub() {
+            @Override
+            public void onProgress(long transferred, long total) {
+                if (listener != null) {
+                    listener.onProgress(transferred, total);
+                }
+            }
+
+            @Override
+            public void onComplete(long transferred) {
+                binder.unlinkToDeath(deathRecipient, 0);
+                future.complete(transferred);
+            }
+
+            @Override
+            public void onError(String message) {
+                binder.unlinkToDeath(deathRecipient, 0);
+                future.completeExceptionally(new IOException(message));
+            }
+        };
+
+        Bundle options = new Bundle();
+        if (mode != -1) {
+            options.putInt(ShizukuApiConstants.FILE_TRANSFER_ARG_MODE, mode);
+        }
+
+        boolean linked = false;
+        boolean supported = true;
+        try {
+            binder.linkToDeath(deathRecipient, 0);
+            linked = true;
+            supported = transactCopyFile(binder, source, destination, options, callback);
+        } catch (RemoteException e) {
+            future.completeExceptionally(e);
+        } finally {
+            // Only a running copy needs to know if the remote service dies
+            if (linked && (!supported || future.isDone())) {
+                binder.unlinkToDeath(deathRecipient, 0);
+            }
+            // The fd is duplicated to the remote side when the transaction is sent
+            if (supported) {
+                closeQuietly(source);
+            }
+        }
+
+        if (!supported) {
+            Log.w(TAG, "copyFile is not supported by remote service, fallback to cat");
+            return copyFileWithProcess(source, destination, mode, listener);
+        }
+        return future;
+    }
+
+    /**
+     * Call copyFile as a two-way transaction (it's oneway in aidl), so that it can be told if the remote service
+     * knows it, as a server reporting version 13 may not implement it.
+     *
+     * @return if the remote service supports copyFile
+     */
+    private static boolean transactCopyFile(IBinder binder, ParcelFileDescriptor source, String destination,
+                                            Bundle options, IFileTransferCallback callback) throws RemoteException {
+        Parcel data = ShizukuParcelPool.obtain();
+        Parcel reply = ShizukuParcelPool.obtain();
+        try {
+            data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            data.writeInt(1);
+            source.writeToParcel(data, 0);
+            data.writeString(destination);
+            data.writeInt(1);
+            options.writeToParcel(data, 0);
+            data.writeStrongBinder(callback.asBinder());
+            return binder.transact(TRANSACTION_copyFile, data, reply, 0);
+        } finally {
+            ShizukuParcelPool.recycle(data);
+            ShizukuParcelPool.recycle(reply);
+        }
+    }
+
+    /**
+     * Copy with "cat" for remote service below version 13.
+     */
+    static ShizukuFuture<Long> copyFileWithProcess(@NonNull ParcelFileDescriptor source, @NonNull String destination,
+                                                   int mode, @Nullable Shizuku.OnFileTransferProgressListener listener) {
+        ShizukuFuture<Long> future = new ShizukuFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                future.complete(copyWithProcess(source, destination, mode, listener));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }, "ShizukuFileTransfer");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    private static long copyWithProcess(ParcelFileDescriptor source, String destination, int mode,
+                                        Shizuku.OnFileTransferProgressListener listener) throws IOException, InterruptedException {
+        String script = mode != -1
+                ? "cat > \"$1\" && chmod " + Integer.toOctalString(mode) + " \"$1\""
+                : "cat > \"$1\"";
+        ShizukuRemoteProcess process;
+        try {
+            process = Shizuku.newProcess(
+                    new Shizuku.ProcessArgs(new String[]{"sh", "-c", script, "sh", destination}).redirectErrorStream(true));
+        } catch (RuntimeException e) {
+            closeQuietly(source);
+            throw e;
+        }
+
+        long total = source.getStatSize();
+        long transferred = 0;
+        try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(source);
+             OutputStream out = process.getOutputStream()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                transferred += count;
+                if (listener != null) {
+                    listener.onProgress(transferred, total);
+                }
+            }
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+        }
+
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IOException("copy to " + destination + " failed with " + exitCode + ": " + output.toString().trim());
+        }
+        return transferred;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close", e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package rikka.shizuku;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous operation of Shizuku.
+ * <p>
+ * In addition to {@link Future}, callbacks can be added with {@link #addCallback(Callback, Executor)}.
+ *
+ * @param <T> type of the result
+ * @since added from version 13
+ */
+public class ShizukuFuture<T> implements Future<T> {
+
+    public interface Callback<T> {
+
+        /**
+         * Called when the operation is finished.
+         *
+         * @param result result
+         */
+        void onResult(@Nullable T result);
+
+        /**
+         * Called when the operation is failed, timed out ({@link TimeoutException}) or cancelled
+         * ({@link CancellationException}).
+         *
+         * @param error error
+         */
+        void onError(@NonNull Throwable error);
+    }
+
+    private static class CallbackRecord<T> {
+
+        final Callback<? super T> callback;
+        final Executor executor;
+
+        CallbackRecord(Callback<? super T> callback, Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+    }
+
+    private boolean done;
+    private boolean cancelled;
+    private T result;
+    private Throwable error;
+    private List<CallbackRecord<T>> callbacks = new ArrayList<>();
+
+    ShizukuFuture() {
+    }
+
+    boolean complete(@Nullable T result) {
+        return finish(result, null, false);
+    }
+
+    boolean completeExceptionally(@NonNull Throwable error) {
+        return finish(null, error, false);
+    }
+
+    /**
+     * Cancel the operation. An operation that is already running at remote can't be interrupted, it will finish in
+     * background and its result will be discarded.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true);
+    }
+
+    private boolean finish(T result, Throwable error, boolean cancelled) {
+        List<CallbackRecord<T>> callbacks;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.done = true;
+            this.cancelled = cancelled;
+            this.result = result;
+            this.error = error;
+
+            callbacks = this.callbacks;
+            this.callbacks = null;
+            notifyAll();
+        }
+
+        for (CallbackRecord<T> record : callbacks) {
+            dispatch(record);
+        }
+        return true;
+    }
+
+    /**
+     * Add a callback which is called when the operation is done. If the operation is already done, the callback is
+     * called immediately.
+     *
+     * @param callback callback
+     * @param executor executor to run the callback, or <code>null</code> to run it in the thread which finishes
+     *                 the operation
+     */
+    public void addCallback(@NonNull Callback<? super T> callback, @Nullable Executor executor) {
+        CallbackRecord<T> record = new CallbackRecord<>(callback, executor);
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(record);
+                return;
+            }
+        }
+        dispatch(record);
+    }
+
+    private void dispatch(CallbackRecord<T> record) {
+        Runnable runnable = () -> {
+            if (error != null) {
+                record.callback.onError(error);
+            } else {
+                record.callback.onResult(result);
+            }
+        };
+
+        if (record.executor != null) {
+            record.executor.execute(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws ExecutionException, InterruptedException {
+        while (!done) {
+            wait();
+        }
+        return report();
+    }
+
+    @Override
+    public synchronized T get(long timeout, @NonNull TimeUnit unit) throws ExecutionException, InterruptedException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (!done) {
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return report();
+    }
+
+    private T report() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) error;
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+}
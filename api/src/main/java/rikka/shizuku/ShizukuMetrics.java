@@ -0,0 +1,127 @@
+package rikka.shizuku;
+
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FileDescriptor;
+
+class ShizukuMetrics {
+
+    private static volatile ShizukuMetricsListener listener;
+
+    static void setListener(@Nullable ShizukuMetricsListener listener) {
+        ShizukuMetrics.listener = listener;
+        ShizukuParcelPool.setCountEnabled(listener != null);
+    }
+
+    static boolean isEnabled() {
+        return listener != null;
+    }
+
+    static void report(@Nullable String descriptor, int code, long startNanos, @NonNull Parcel data, @Nullable Parcel reply) {
+        ShizukuMetricsListener listener = ShizukuMetrics.listener;
+        if (listener == null) {
+            return;
+        }
+        listener.onTransaction(descriptor, code, System.nanoTime() - startNanos,
+                data.dataSize(), reply != null ? reply.dataSize() : -1);
+    }
+
+    /**
+     * Wrap a binder of the remote service, so that calls of aidl methods are reported. The binder is returned as is
+     * if no listener is set.
+     *
+     * @param binder     binder, such as the binder of the remote service or of a remote process
+     * @param descriptor interface descriptor of the binder, reported as the descriptor of the calls
+     */
+    @Nullable
+    static IBinder wrapBinder(@Nullable IBinder binder, @NonNull String descriptor) {
+        if (binder == null || listener == null || binder instanceof MetricsBinder) {
+            return binder;
+        }
+        return new MetricsBinder(binder, descriptor);
+    }
+
+    /**
+     * Returns the binder wrapped by {@link #wrapBinder(IBinder, String)}, which must be used when the binder is
+     * written to a parcel.
+     */
+    @Nullable
+    static IBinder unwrapBinder(@Nullable IBinder binder) {
+        return binder instanceof MetricsBinder ? ((MetricsBinder) binder).original : binder;
+    }
+
+    private static class MetricsBinder implements IBinder {
+
+        private final IBinder original;
+        private final String descriptor;
+
+        MetricsBinder(IBinder original, String descriptor) {
+            this.original = original;
+            this.descriptor = descriptor;
+        }
+
+        @Override
+        public boolean transact(int code, @NonNull Parcel data, @Nullable Parcel reply, int flags) throws RemoteException {
+            // transactRemote reports the target binder by itself
+            if (listener == null || (code == ShizukuApiConstants.BINDER_TRANSACTION_transact
+                    && ShizukuApiConstants.BINDER_DESCRIPTOR.equals(descriptor))) {
+                return original.transact(code, data, reply, flags);
+            }
+
+            long start = System.nanoTime();
+            try {
+                return original.transact(code, data, reply, flags);
+            } finally {
+                report(descriptor, code, start, data, reply);
+            }
+        }
+
+        @Nullable
+        @Override
+        public String getInterfaceDescriptor() throws RemoteException {
+            return original.getInterfaceDescriptor();
+        }
+
+        @Override
+        public boolean pingBinder() {
+            return original.pingBinder();
+        }
+
+        @Override
+        public boolean isBinderAlive() {
+            return original.isBinderAlive();
+        }
+
+        @Nullable
+        @Override
+        public IInterface queryLocalInterface(@NonNull String descriptor) {
+            return original.queryLocalInterface(descriptor);
+        }
+
+        @Override
+        public void dump(@NonNull FileDescriptor fd, @Nullable String[] args) throws RemoteException {
+            original.dump(fd, args);
+        }
+
+        @Override
+        public void dumpAsync(@NonNull FileDescriptor fd, @Nullable String[] args) throws RemoteException {
+            original.dumpAsync(fd, args);
+        }
+
+        @Override
+        public void linkToDeath(@NonNull DeathRecipient recipient, int flags) throws RemoteException {
+            original.linkToDeath(recipient, flags);
+        }
+
+        @Override
+        public boolean unlinkToDeath(@NonNull DeathRecipient recipient, int flags) {
+            return original.unlinkToDeath(recipient, flags);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package rikka.shizuku;
+
+import android.os.Parcel;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Listener of binder calls made through {@link Shizuku} and {@link ShizukuBinderWrapper}.
+ *
+ * @see Shizuku#setMetricsListener(ShizukuMetricsListener)
+ * @since added from version 13
+ */
+public interface ShizukuMetricsListener {
+
+    /**
+     * Called after a binder call is finished (or failed), in the thread which makes the call.
+     * <p>
+     * For calls to the remote service itself (such as {@link Shizuku#newProcess(String[], String[], String)}),
+     * descriptor is {@link ShizukuApiConstants#BINDER_DESCRIPTOR} and code is the transaction code of the aidl method.
+     * For {@link Shizuku#transactRemote(Parcel, Parcel, int)}, descriptor and code are of the target binder.
+     *
+     * @param descriptor    interface descriptor of the target binder, or <code>null</code> if unknown
+     * @param code          transaction code, or <code>0</code> if unknown
+     * @param durationNanos time of the call in nanoseconds
+     * @param dataSize      size of the data parcel
+     * @param replySize     size of the reply parcel, or <code>-1</code> if there is no reply
+     */
+    void onTransaction(@Nullable String descriptor, int code, long durationNanos, int dataSize, int replySize);
+}
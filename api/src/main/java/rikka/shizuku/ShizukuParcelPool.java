@@ -0,0 +1,114 @@
+package rikka.shizuku;
+
+import android.os.Parcel;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread cache of {@link Parcel}s.
+ * <p>
+ * {@link Parcel#obtain()} and {@link Parcel#recycle()} use a global pool guarded by a lock, which becomes a
+ * contention point when many threads make binder calls at the same time. Parcels obtained from this class are
+ * reused by the same thread without touching the global pool.
+ * <p>
+ * Parcels obtained from this class must be returned with {@link #recycle(Parcel)} instead of {@link Parcel#recycle()}.
+ * <p>
+ * Only use pooled parcels for data written and read by your own code with plain <code>write*</code> and
+ * <code>read*</code> methods, never hand them to code you don't control (such as {@link android.os.Parcelable} of
+ * other libraries). A reused parcel only has its data cleared, state which {@link Parcel#recycle()} also resets
+ * (read/write helper, class cookies, allow-fds and sensitive flags) is kept for the next user on this thread.
+ *
+ * @since added from version 13
+ */
+public class ShizukuParcelPool {
+
+    private static final int MAX_POOL_SIZE = 4;
+
+    // Parcels with larger buffer are released, so that idle threads do not hold a lot of memory
+    private static final int MAX_CACHED_CAPACITY = 16 * 1024;
+
+    private static final ThreadLocal<ArrayDeque<Parcel>> POOL = new ThreadLocal<ArrayDeque<Parcel>>() {
+        @Override
+        protected ArrayDeque<Parcel> initialValue() {
+            return new ArrayDeque<>(MAX_POOL_SIZE);
+        }
+    };
+
+    // Shared counters would bring contention back, so they are only updated while metrics are enabled
+    private static volatile boolean countEnabled;
+    private static final AtomicLong HIT_COUNT = new AtomicLong();
+    private static final AtomicLong MISS_COUNT = new AtomicLong();
+
+    static void setCountEnabled(boolean enabled) {
+        countEnabled = enabled;
+    }
+
+    /**
+     * Retrieve an empty parcel from the pool of current thread.
+     *
+     * @return parcel
+     */
+    @NonNull
+    public static Parcel obtain() {
+        Parcel parcel = POOL.get().pollFirst();
+        if (parcel != null) {
+            if (countEnabled) {
+                HIT_COUNT.incrementAndGet();
+            }
+            return parcel;
+        }
+        if (countEnabled) {
+            MISS_COUNT.incrementAndGet();
+        }
+        return Parcel.obtain();
+    }
+
+    /**
+     * Put a parcel obtained from {@link #obtain()} back to the pool of current thread.
+     *
+     * @param parcel parcel
+     */
+    public static void recycle(@NonNull Parcel parcel) {
+        ArrayDeque<Parcel> pool = POOL.get();
+        if (pool.size() >= MAX_POOL_SIZE || parcel.dataCapacity() > MAX_CACHED_CAPACITY) {
+            parcel.recycle();
+            return;
+        }
+
+        // Release objects (binders, file descriptors) held by the parcel but keep its buffer
+        parcel.setDataSize(0);
+        parcel.setDataPosition(0);
+        pool.addFirst(parcel);
+    }
+
+    /**
+     * Returns how many times {@link #obtain()} is served from the pool, only counted while a metrics listener is set
+     * with {@link Shizuku#setMetricsListener(ShizukuMetricsListener)}.
+     *
+     * @return hit count
+     */
+    public static long getHitCount() {
+        return HIT_COUNT.get();
+    }
+
+    /**
+     * Returns how many times {@link #obtain()} falls back to {@link Parcel#obtain()}, only counted while a metrics
+     * listener is set with {@link Shizuku#setMetricsListener(ShizukuMetricsListener)}.
+     *
+     * @return miss count
+     */
+    public static long getMissCount() {
+        return MISS_COUNT.get();
+    }
+
+    /**
+     * Reset hit and miss count.
+     */
+    public static void resetCounts() {
+        HIT_COUNT.set(0);
+        MISS_COUNT.set(0);
+    }
+}
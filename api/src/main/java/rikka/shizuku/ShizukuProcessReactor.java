@@ -0,0 +1,108 @@
+package rikka.shizuku;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Reads output of remote processes from a {@link Looper} with
+ * {@link MessageQueue#addOnFileDescriptorEventListener(FileDescriptor, int, MessageQueue.OnFileDescriptorEventListener)},
+ * so that one thread can serve stdout and stderr of many processes.
+ */
+class ShizukuProcessReactor {
+
+    private static final String TAG = "ShizukuProcessReactor";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // Buffer is only used in the looper thread, and it is only valid during the callback
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private static Looper defaultLooper;
+
+    static synchronized Looper getDefaultLooper() {
+        if (defaultLooper == null) {
+            HandlerThread thread = new HandlerThread("ShizukuProcessReactor");
+            thread.start();
+            defaultLooper = thread.getLooper();
+        }
+        return defaultLooper;
+    }
+
+    static void register(@NonNull Looper looper, @NonNull ShizukuRemoteProcess process, int stream,
+                         @NonNull ParcelFileDescriptor pfd, @NonNull ShizukuRemoteProcess.OnOutputListener listener) {
+        StreamReader reader = new StreamReader(process, stream, pfd, listener);
+        looper.getQueue().addOnFileDescriptorEventListener(pfd.getFileDescriptor(),
+                MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT | MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR,
+                reader);
+    }
+
+    private static class StreamReader implements MessageQueue.OnFileDescriptorEventListener {
+
+        private final ShizukuRemoteProcess process;
+        private final int stream;
+        private final ParcelFileDescriptor pfd;
+        private final ShizukuRemoteProcess.OnOutputListener listener;
+
+        StreamReader(ShizukuRemoteProcess process, int stream, ParcelFileDescriptor pfd, ShizukuRemoteProcess.OnOutputListener listener) {
+            this.process = process;
+            this.stream = stream;
+            this.pfd = pfd;
+            this.listener = listener;
+        }
+
+        @Override
+        public int onFileDescriptorEvents(@NonNull FileDescriptor fd, int events) {
+            if ((events & EVENT_INPUT) != 0) {
+                byte[] buffer = BUFFER.get();
+                int count;
+                try {
+                    // Looper polls the fd, so the pipe is readable and read will not block
+                    count = Os.read(fd, buffer, 0, buffer.length);
+                } catch (ErrnoException e) {
+                    if (e.errno == OsConstants.EAGAIN || e.errno == OsConstants.EINTR) {
+                        return EVENT_INPUT | EVENT_ERROR;
+                    }
+                    Log.w(TAG, "read", e);
+                    count = -1;
+                } catch (InterruptedIOException e) {
+                    return EVENT_INPUT | EVENT_ERROR;
+                }
+
+                if (count > 0) {
+                    listener.onOutput(process, stream, buffer, count);
+                    return EVENT_INPUT | EVENT_ERROR;
+                }
+            }
+
+            // EOF or error, the remote side of the pipe is closed
+            close();
+            listener.onEnd(process, stream);
+            return 0;
+        }
+
+        private void close() {
+            try {
+                pfd.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package rikka.shizuku;
+
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Resource usage of an exited remote process.
+ *
+ * @see ShizukuRemoteProcess#getResourceUsage()
+ * @since added from version 13
+ */
+public class ShizukuProcessResourceUsage {
+
+    private final long userTime;
+    private final long systemTime;
+    private final long maxRssKb;
+    private final long wallTime;
+
+    ShizukuProcessResourceUsage(@NonNull Bundle bundle) {
+        userTime = bundle.getLong(ShizukuApiConstants.PROCESS_USAGE_USER_TIME, -1);
+        systemTime = bundle.getLong(ShizukuApiConstants.PROCESS_USAGE_SYSTEM_TIME, -1);
+        maxRssKb = bundle.getLong(ShizukuApiConstants.PROCESS_USAGE_MAX_RSS_KB, -1);
+        wallTime = bundle.getLong(ShizukuApiConstants.PROCESS_USAGE_WALL_TIME, -1);
+    }
+
+    /**
+     * Returns CPU time spent in user mode.
+     *
+     * @return time in milliseconds, or -1 if unknown
+     */
+    public long getUserTime() {
+        return userTime;
+    }
+
+    /**
+     * Returns CPU time spent in kernel mode.
+     *
+     * @return time in milliseconds, or -1 if unknown
+     */
+    public long getSystemTime() {
+        return systemTime;
+    }
+
+    /**
+     * Returns max resident set size.
+     *
+     * @return size in kilobytes, or -1 if unknown
+     */
+    public long getMaxRssKb() {
+        return maxRssKb;
+    }
+
+    /**
+     * Returns time from the process is started to it is exited.
+     *
+     * @return time in milliseconds, or -1 if unknown
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ShizukuProcessResourceUsage{" +
+                "userTime=" + userTime +
+                ", systemTime=" + systemTime +
+                ", maxRssKb=" + maxRssKb +
+                ", wallTime=" + wallTime +
+                '}';
+    }
+}
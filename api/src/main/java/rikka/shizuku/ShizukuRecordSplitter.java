@@ -0,0 +1,132 @@
+package rikka.shizuku;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Split a byte stream, such as output of a remote process, into records (lines by default) as bytes arrive.
+ * <p>
+ * Records are delivered as a range of a buffer which is reused, so memory usage does not grow with the size of the
+ * stream. Convert the range to <code>String</code> only when needed.
+ * <p>
+ * example:
+ * <br><code>ShizukuRecordSplitter splitter = new ShizukuRecordSplitter((buffer, offset, length) -&gt; {
+ * <br>&nbsp;&nbsp;&nbsp;&nbsp;\/* handle the line*\/
+ * <br>});
+ * <br>process.setOnOutputListener(...) \/* call feed from onOutput and finish from onEnd*\/</code>
+ *
+ * @see ShizukuRemoteProcess#readOutput(ShizukuRecordSplitter)
+ * @since added from version 13
+ */
+public class ShizukuRecordSplitter {
+
+    public interface OnRecordListener {
+
+        /**
+         * Called when a record is read. The delimiter is not included.
+         *
+         * @param buffer buffer holding the record, it is reused after this method returns
+         * @param offset offset of the record
+         * @param length length of the record
+         */
+        void onRecord(@NonNull byte[] buffer, int offset, int length);
+    }
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final byte delimiter;
+    private final OnRecordListener listener;
+
+    // Holds the part of a record which is not finished in the last feed
+    private byte[] pending = new byte[INITIAL_CAPACITY];
+    private int pendingLength;
+
+    /**
+     * Create a splitter which splits lines.
+     *
+     * @param listener listener
+     */
+    public ShizukuRecordSplitter(@NonNull OnRecordListener listener) {
+        this((byte) '\n', listener);
+    }
+
+    /**
+     * Create a splitter with a custom delimiter, such as <code>'\0'</code>.
+     *
+     * @param delimiter delimiter of records
+     * @param listener  listener
+     */
+    public ShizukuRecordSplitter(byte delimiter, @NonNull OnRecordListener listener) {
+        this.delimiter = delimiter;
+        this.listener = listener;
+    }
+
+    /**
+     * Feed bytes to the splitter, complete records are delivered before this method returns.
+     *
+     * @param buffer buffer
+     * @param offset offset
+     * @param length length
+     */
+    public void feed(@NonNull byte[] buffer, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (buffer[i] != delimiter) {
+                continue;
+            }
+
+            if (pendingLength == 0) {
+                // The whole record is in the given buffer, no copy is needed
+                listener.onRecord(buffer, start, i - start);
+            } else {
+                append(buffer, start, i - start);
+                listener.onRecord(pending, 0, pendingLength);
+                pendingLength = 0;
+            }
+            start = i + 1;
+        }
+
+        if (start < end) {
+            append(buffer, start, end - start);
+        }
+    }
+
+    /**
+     * Deliver the last record if the stream does not end with the delimiter. Call this when the stream is ended.
+     */
+    public void finish() {
+        if (pendingLength > 0) {
+            listener.onRecord(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+    }
+
+    /**
+     * Read the stream to the end and feed all bytes to the splitter. The stream is not closed.
+     *
+     * @param in input stream
+     * @throws IOException if an I/O error occurs
+     */
+    public void readFrom(@NonNull InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            feed(buffer, 0, count);
+        }
+        finish();
+    }
+
+    private void append(byte[] buffer, int offset, int length) {
+        int required = pendingLength + length;
+        if (required > pending.length) {
+            byte[] newPending = new byte[Math.max(required, pending.length * 2)];
+            System.arraycopy(pending, 0, newPending, 0, pendingLength);
+            pending = newPending;
+        }
+        System.arraycopy(buffer, offset, pending, pendingLength, length);
+        pendingLength = required;
+    }
+}
@@ -1,46 +1,248 @@
 package rikka.shizuku;
 
+import android.os.Bundle;
+import android.os.DeadObjectException;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.os.RemoteException;
-import android.util.ArraySet;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Collections;
-import java.util.Set;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import moe.shizuku.server.IRemoteProcess;
+import moe.shizuku.server.IRemoteProcessCallback;
 
 public class ShizukuRemoteProcess extends Process implements Parcelable {
 
-    private static final Set<ShizukuRemoteProcess> CACHE = Collections.synchronizedSet(new ArraySet<>());
+    /**
+     * Stream id of stdout, used in {@link OnOutputListener}.
+     */
+    public static final int STREAM_OUTPUT = 1;
+
+    /**
+     * Stream id of stderr, used in {@link OnOutputListener}.
+     */
+    public static final int STREAM_ERROR = 2;
+
+    /**
+     * Listener of output of the remote process.
+     *
+     * @see #setOnOutputListener(OnOutputListener, Looper)
+     */
+    public interface OnOutputListener {
+
+        /**
+         * Called when output is read from the remote process.
+         *
+         * @param process process
+         * @param stream  {@link #STREAM_OUTPUT} or {@link #STREAM_ERROR}
+         * @param buffer  buffer holding the output, it is reused after this method returns
+         * @param length  length of the output
+         */
+        void onOutput(@NonNull ShizukuRemoteProcess process, int stream, @NonNull byte[] buffer, int length);
+
+        /**
+         * Called when the stream reaches the end, which usually means the remote process is exited.
+         *
+         * @param process process
+         * @param stream  {@link #STREAM_OUTPUT} or {@link #STREAM_ERROR}
+         */
+        void onEnd(@NonNull ShizukuRemoteProcess process, int stream);
+    }
+
+    private static class Record {
+
+        final String command;
+        final long createTime;
+        final boolean holdsSlot;
+
+        Record(String command, long createTime, boolean holdsSlot) {
+            this.command = command;
+            this.createTime = createTime;
+            this.holdsSlot = holdsSlot;
+        }
+    }
+
+    // Process does not override equals and hashCode, so entries are keyed by identity
+    private static final Map<ShizukuRemoteProcess, Record> CACHE = new ConcurrentHashMap<>();
+
+    private static final Object SLOT_LOCK = new Object();
+    private static int maxLiveProcesses;
+    private static long slotTimeoutMillis;
+    private static int liveProcesses;
 
     private static final String TAG = "ShizukuRemoteProcess";
 
+    // Methods added in version 13 are sent by code, since a server reporting version 13 may not implement them.
+    // Unknown transactions make transact return false, see ids in IRemoteProcess.aidl.
+    private static final String DESCRIPTOR = "moe.shizuku.server.IRemoteProcess";
+    private static final int TRANSACTION_setExitCallback = IBinder.FIRST_CALL_TRANSACTION + 8;
+    private static final int TRANSACTION_getResourceUsage = IBinder.FIRST_CALL_TRANSACTION + 9;
+
     private IRemoteProcess remote;
+    private final boolean redirectErrorStream;
     private OutputStream os;
     private InputStream is;
+    private InputStream es;
+    private ShizukuFuture<Integer> exitFuture;
+
+    /**
+     * If holdsSlot is true, the slot acquired by {@link #acquireSlot()} is owned by this process after the
+     * constructor returns, it is released when the process is exited or dead.
+     */
+    ShizukuRemoteProcess(IRemoteProcess remote, boolean redirectErrorStream, String[] cmd, boolean holdsSlot) {
+        this.remote = IRemoteProcess.Stub.asInterface(ShizukuMetrics.wrapBinder(remote.asBinder(), DESCRIPTOR));
+        this.redirectErrorStream = redirectErrorStream;
 
-    ShizukuRemoteProcess(IRemoteProcess remote) {
-        this.remote = remote;
+        IBinder binder = remote.asBinder();
         try {
-            this.remote.asBinder().linkToDeath((IBinder.DeathRecipient) () -> {
+            binder.linkToDeath((IBinder.DeathRecipient) () -> {
                 this.remote = null;
                 Log.v(TAG, "remote process is dead");
 
-                CACHE.remove(ShizukuRemoteProcess.this);
+                unregister();
+
+                ShizukuFuture<Integer> future;
+                synchronized (this) {
+                    future = exitFuture;
+                }
+                if (future != null) {
+                    future.completeExceptionally(new DeadObjectException());
+                }
             }, 0);
         } catch (RemoteException e) {
+            // The remote process is already dead, nothing to hold
             Log.e(TAG, "linkToDeath", e);
+            if (holdsSlot) {
+                releaseSlot();
+            }
+            return;
         }
 
         // The reference to the binder object must be hold
-        CACHE.add(this);
+        CACHE.put(this, new Record(TextUtils.join(" ", cmd), SystemClock.elapsedRealtime(), holdsSlot));
+
+        // In case the binder is dead before it is registered
+        if (!binder.isBinderAlive()) {
+            unregister();
+            return;
+        }
+
+        // The slot must be released when the process exits, even if the caller never asks for the exit code
+        if (holdsSlot) {
+            waitForAsync();
+        }
+    }
+
+    /**
+     * Same to {@link #setMaxLiveProcesses(int, long)} with a timeout of 30 seconds.
+     *
+     * @since added from version 13
+     */
+    public static void setMaxLiveProcesses(int max) {
+        setMaxLiveProcesses(max, 30 * 1000);
+    }
+
+    /**
+     * Set the max number of live processes started by {@link Shizuku#newProcess(Shizuku.ProcessArgs)}. When the limit
+     * is reached, starting a new process blocks until a process is exited or destroyed, or fails with
+     * {@link IllegalStateException} after the timeout or if the waiting thread is interrupted (the interrupt status
+     * is kept). Processes started by the deprecated {@link Shizuku#newProcess(String[], String[], String)} are not
+     * limited.
+     * <p>
+     * The exit of each limited process is watched with {@link #waitForAsync()}, so the slot is released when the
+     * process exits, even if the exit code is never asked for. If the remote service does not support exit
+     * callbacks, this costs a background thread per live process.
+     *
+     * @param max           max number of live processes, or <code>0</code> for no limit (default)
+     * @param timeoutMillis max time to wait for a process to exit, or <code>0</code> to wait forever
+     * @since added from version 13
+     */
+    public static void setMaxLiveProcesses(int max, long timeoutMillis) {
+        synchronized (SLOT_LOCK) {
+            maxLiveProcesses = max;
+            slotTimeoutMillis = timeoutMillis;
+            SLOT_LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of live remote processes.
+     *
+     * @return number of live processes
+     * @since added from version 13
+     */
+    public static int getLiveProcessCount() {
+        return CACHE.size();
+    }
+
+    /**
+     * Print live processes with their commands and ages, which is useful to find processes that are never destroyed.
+     *
+     * @param writer writer
+     * @since added from version 13
+     */
+    public static void dump(@NonNull PrintWriter writer) {
+        long now = SystemClock.elapsedRealtime();
+        writer.println("Live remote processes: " + CACHE.size());
+        for (Record record : CACHE.values()) {
+            writer.println("  age=" + (now - record.createTime) + "ms command=" + record.command);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Wait for a free slot if the number of live processes is limited.
+     *
+     * @throws IllegalStateException if no slot is free before the timeout, or if interrupted while waiting
+     */
+    static void acquireSlot() {
+        synchronized (SLOT_LOCK) {
+            long deadline = SystemClock.uptimeMillis() + slotTimeoutMillis;
+            while (maxLiveProcesses > 0 && liveProcesses >= maxLiveProcesses) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (slotTimeoutMillis > 0 && remaining <= 0) {
+                    throw new IllegalStateException("too many live remote processes (" + liveProcesses + "), "
+                            + "waited " + slotTimeoutMillis + "ms for a process to exit");
+                }
+                try {
+                    SLOT_LOCK.wait(slotTimeoutMillis > 0 ? remaining : 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while waiting for a process to exit", e);
+                }
+            }
+            liveProcesses++;
+        }
+    }
+
+    static void releaseSlot() {
+        synchronized (SLOT_LOCK) {
+            liveProcesses--;
+            SLOT_LOCK.notifyAll();
+        }
+    }
+
+    private void unregister() {
+        Record record = CACHE.remove(this);
+        if (record != null && record.holdsSlot) {
+            releaseSlot();
+        }
     }
 
     @Override
@@ -69,17 +271,28 @@ public class ShizukuRemoteProcess extends Process implements Parcelable {
 
     @Override
     public InputStream getErrorStream() {
-        try {
-            return new ParcelFileDescriptor.AutoCloseInputStream(remote.getErrorStream());
-        } catch (RemoteException e) {
-            throw new RuntimeException(e);
+        if (es == null) {
+            ParcelFileDescriptor err = null;
+            if (!redirectErrorStream) {
+                try {
+                    err = remote.getErrorStream();
+                } catch (RemoteException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            // The remote service may have no error stream for a redirected process, which is not known to
+            // instances from a parcel
+            es = err != null ? new ParcelFileDescriptor.AutoCloseInputStream(err) : new ByteArrayInputStream(new byte[0]);
         }
+        return es;
     }
 
     @Override
     public int waitFor() throws InterruptedException {
         try {
-            return remote.waitFor();
+            int exitCode = remote.waitFor();
+            unregister();
+            return exitCode;
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
@@ -88,7 +301,9 @@ public class ShizukuRemoteProcess extends Process implements Parcelable {
     @Override
     public int exitValue() {
         try {
-            return remote.exitValue();
+            int exitCode = remote.exitValue();
+            unregister();
+            return exitCode;
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
@@ -98,9 +313,148 @@ public class ShizukuRemoteProcess extends Process implements Parcelable {
     public void destroy() {
         try {
             remote.destroy();
+            unregister();
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Read stdout and stderr of the remote process without blocking threads. If the error stream is redirected,
+     * only {@link #STREAM_OUTPUT} is reported.
+     * <p>
+     * Output is read in the thread of the given looper when it's available, so one thread can serve many processes.
+     * {@link #getInputStream()} and {@link #getErrorStream()} must not be used after this method is called.
+     *
+     * @param listener listener
+     * @param looper   looper to read output and call the listener, or <code>null</code> to use a shared background
+     *                 thread
+     * @since added from version 13
+     */
+    public void setOnOutputListener(@NonNull OnOutputListener listener, @Nullable Looper looper) {
+        if (looper == null) {
+            looper = ShizukuProcessReactor.getDefaultLooper();
+        }
+
+        ParcelFileDescriptor out;
+        ParcelFileDescriptor err = null;
+        try {
+            out = remote.getInputStream();
+            if (!redirectErrorStream) {
+                err = remote.getErrorStream();
+            }
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
+        ShizukuProcessReactor.register(looper, this, STREAM_OUTPUT, out, listener);
+        if (err != null) {
+            ShizukuProcessReactor.register(looper, this, STREAM_ERROR, err, listener);
+        }
+    }
+
+    /**
+     * Read stdout of the remote process until the end, records are delivered by the splitter as output arrives.
+     * This method blocks until the stream is ended.
+     *
+     * @param splitter splitter
+     * @throws IOException if an I/O error occurs
+     * @since added from version 13
+     */
+    public void readOutput(@NonNull ShizukuRecordSplitter splitter) throws IOException {
+        splitter.readFrom(getInputStream());
+    }
+
+    /**
+     * Returns a future which is completed with the exit code when the process exits, without blocking a thread at
+     * either side.
+     * <p>
+     * If the remote service does not support exit callbacks (below version 13, or a server reporting version 13
+     * without this feature), a background thread calling {@link #waitFor()} is used.
+     *
+     * @return future of exit code
+     * @since added from version 13
+     */
+    @NonNull
+    public synchronized ShizukuFuture<Integer> waitForAsync() {
+        if (exitFuture != null) {
+            return exitFuture;
+        }
+
+        ShizukuFuture<Integer> future = new ShizukuFuture<>();
+        exitFuture = future;
+
+        boolean supported;
+        try {
+            supported = setExitCallback(new IRemoteProcessCallback.Stub() {
+                @Override
+                public void onExit(int exitCode) {
+                    unregister();
+                    future.complete(exitCode);
+                }
+            });
+        } catch (RemoteException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        if (!supported) {
+            Thread thread = new Thread(() -> {
+                try {
+                    future.complete(waitFor());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }, "ShizukuRemoteProcess-waitFor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return future;
+    }
+
+    /**
+     * Call setExitCallback as a two-way transaction (it's oneway in aidl), so that it can be told if the remote
+     * service knows it, remote services below version 13 don't.
+     *
+     * @return if the remote service supports exit callbacks
+     */
+    private boolean setExitCallback(IRemoteProcessCallback callback) throws RemoteException {
+        Parcel data = ShizukuParcelPool.obtain();
+        Parcel reply = ShizukuParcelPool.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            data.writeStrongBinder(callback.asBinder());
+            return remote.asBinder().transact(TRANSACTION_setExitCallback, data, reply, 0);
+        } finally {
+            ShizukuParcelPool.recycle(data);
+            ShizukuParcelPool.recycle(reply);
+        }
+    }
+
+    /**
+     * Returns resource usage of the process, collected by the remote service when the process exits.
+     *
+     * @return resource usage, or <code>null</code> if the process is not exited or the remote service does not
+     * support it
+     * @since added from version 13
+     */
+    @Nullable
+    public ShizukuProcessResourceUsage getResourceUsage() {
+        Parcel data = ShizukuParcelPool.obtain();
+        Parcel reply = ShizukuParcelPool.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            if (!remote.asBinder().transact(TRANSACTION_getResourceUsage, data, reply, 0)) {
+                return null;
+            }
+            reply.readException();
+            Bundle bundle = reply.readInt() != 0 ? Bundle.CREATOR.createFromParcel(reply) : null;
+            return bundle != null ? new ShizukuProcessResourceUsage(bundle) : null;
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        } finally {
+            ShizukuParcelPool.recycle(data);
+            ShizukuParcelPool.recycle(reply);
+        }
     }
 
     public boolean alive() {
@@ -113,18 +467,24 @@ public class ShizukuRemoteProcess extends Process implements Parcelable {
 
     public boolean waitForTimeout(long timeout, TimeUnit unit) throws InterruptedException {
         try {
-            return remote.waitForTimeout(timeout, unit.toString());
+            boolean exited = remote.waitForTimeout(timeout, unit.toString());
+            if (exited) {
+                unregister();
+            }
+            return exited;
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
     }
 
     public IBinder asBinder() {
-        return remote.asBinder();
+        return ShizukuMetrics.unwrapBinder(remote.asBinder());
     }
 
     private ShizukuRemoteProcess(Parcel in) {
-        remote = IRemoteProcess.Stub.asInterface(in.readStrongBinder());
+        remote = IRemoteProcess.Stub.asInterface(ShizukuMetrics.wrapBinder(in.readStrongBinder(), DESCRIPTOR));
+        // Not in the parcel to keep the format of older versions, the error stream tells it
+        redirectErrorStream = false;
     }
 
     public static final Creator<ShizukuRemoteProcess> CREATOR = new Creator<ShizukuRemoteProcess>() {
@@ -146,6 +506,6 @@ public class ShizukuRemoteProcess extends Process implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeStrongBinder(remote.asBinder());
+        dest.writeStrongBinder(asBinder());
     }
 }
@@ -0,0 +1,375 @@
+package rikka.shizuku;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keep a number of remote <code>sh</code> processes alive and run commands in them, so that short commands do not
+ * pay the cost of starting a new process every time.
+ * <p>
+ * Each command runs in its own <code>{ }</code> group of a shell that is reused, so state changed by a command, such
+ * as working directory or variables, is visible to later commands that happen to use the same shell. stdin of the
+ * command is <code>/dev/null</code> and stderr is merged into stdout.
+ * <p>
+ * example:
+ * <br><code>ShizukuShellPool pool = new ShizukuShellPool(4, 30, TimeUnit.SECONDS);
+ * <br>ShizukuShellPool.Result result = pool.execute("pm list packages");
+ * <br>pool.close();</code>
+ *
+ * @since added from version 13
+ */
+public class ShizukuShellPool {
+
+    private static final String TAG = "ShizukuShellPool";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Result of a command.
+     */
+    public static class Result {
+
+        private final int exitCode;
+        private final byte[] output;
+
+        Result(int exitCode, byte[] output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        /**
+         * Returns exit status of the command.
+         *
+         * @return exit status
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * Returns output of the command, stdout and stderr are merged.
+         *
+         * @return output
+         */
+        @NonNull
+        public byte[] getOutput() {
+            return output;
+        }
+
+        /**
+         * Returns output of the command decoded as UTF-8.
+         *
+         * @return output
+         */
+        @NonNull
+        public String getOutputString() {
+            return new String(output, UTF_8);
+        }
+    }
+
+    private static class Shell {
+
+        final ShizukuRemoteProcess process;
+        final OutputStream out;
+        final InputStream in;
+        final ShizukuFuture<Integer> exit;
+        final byte[] marker;
+        final ShizukuRecordSplitter splitter;
+        final byte[] buffer = new byte[8192];
+
+        long lastUsed;
+
+        // States of the running command, only accessed by the thread which holds the shell
+        ByteArrayOutputStream output;
+        int exitCode = -1;
+
+        Shell() {
+            process = Shizuku.newProcess(new Shizuku.ProcessArgs(new String[]{"sh"}).redirectErrorStream(true));
+            out = process.getOutputStream();
+            in = process.getInputStream();
+            exit = process.waitForAsync();
+            marker = ("shizuku-shell-pool-" + UUID.randomUUID() + ":").getBytes(UTF_8);
+            splitter = new ShizukuRecordSplitter(this::onLine);
+        }
+
+        boolean isAlive() {
+            return !exit.isDone();
+        }
+
+        /**
+         * Run a command, returns null if the shell exits before the command is finished.
+         */
+        Result run(String command) throws IOException {
+            String marker = new String(this.marker, UTF_8);
+            String script = "{\n" + command + "\n} </dev/null 2>&1\nprintf '\\n" + marker + "%d\\n' \"$?\"\n";
+
+            output = new ByteArrayOutputStream();
+            exitCode = -1;
+            out.write(script.getBytes(UTF_8));
+            out.flush();
+
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                splitter.feed(buffer, 0, count);
+                if (exitCode != -1) {
+                    // The last line break is added by printf, not a part of the output
+                    byte[] bytes = output.toByteArray();
+                    byte[] result = new byte[Math.max(bytes.length - 1, 0)];
+                    System.arraycopy(bytes, 0, result, 0, result.length);
+                    output = null;
+                    return new Result(exitCode, result);
+                }
+            }
+            return null;
+        }
+
+        private void onLine(byte[] buffer, int offset, int length) {
+            if (length > marker.length && startsWith(buffer, offset, marker)) {
+                exitCode = Integer.parseInt(new String(buffer, offset + marker.length, length - marker.length, UTF_8));
+                return;
+            }
+            output.write(buffer, offset, length);
+            output.write('\n');
+        }
+
+        private static boolean startsWith(byte[] buffer, int offset, byte[] prefix) {
+            for (int i = 0; i < prefix.length; i++) {
+                if (buffer[offset + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void destroy() {
+            try {
+                process.destroy();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "destroy", e);
+            }
+        }
+    }
+
+    private final int maxSize;
+    private final long idleTimeout;
+    private final Handler handler = new Handler(ShizukuProcessReactor.getDefaultLooper());
+    private final Runnable evictRunnable = this::evictIdleShells;
+
+    // Most recently used shell is at the head
+    private final ArrayDeque<Shell> idleShells = new ArrayDeque<>();
+    private int size;
+    private boolean evictScheduled;
+    private boolean closed;
+
+    /**
+     * Create a pool.
+     *
+     * @param maxSize     max number of shells, commands wait for a free shell when all shells are busy
+     * @param idleTimeout shells not used for this long are destroyed
+     * @param unit        unit of idleTimeout
+     */
+    public ShizukuShellPool(int maxSize, long idleTimeout, @NonNull TimeUnit unit) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.idleTimeout = unit.toMillis(idleTimeout);
+    }
+
+    /**
+     * Run a command in a shell from the pool, blocks until the command is finished.
+     * <p>
+     * If the command exits the shell (e.g., calls <code>exit</code>), exit status of the shell is returned and the
+     * shell is removed from the pool.
+     * <p>
+     * The command is not checked. An incomplete command, such as an unbalanced quote, an unterminated here-document
+     * or an unclosed <code>{</code>, makes the shell wait for more input and this method never returns. Use
+     * {@link #execute(String, long, TimeUnit)} if the command is not trusted to be complete.
+     *
+     * @param command command, must be a complete shell command
+     * @return result
+     * @throws IOException          if the shell is broken
+     * @throws InterruptedException if interrupted when waiting for a free shell
+     */
+    @NonNull
+    public Result execute(@NonNull String command) throws IOException, InterruptedException {
+        try {
+            return execute(command, 0, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Not possible without a timeout
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Like {@link #execute(String)}, but the shell is destroyed if the command does not finish in time, for example
+     * when the command is incomplete or hangs.
+     *
+     * @param command command, must be a complete shell command
+     * @param timeout max time the command can run, not including the time waiting for a free shell, 0 for no limit
+     * @param unit    unit of timeout
+     * @return result
+     * @throws IOException          if the shell is broken
+     * @throws InterruptedException if interrupted when waiting for a free shell
+     * @throws TimeoutException     if the command does not finish in time, the shell is destroyed
+     */
+    @NonNull
+    public Result execute(@NonNull String command, long timeout, @NonNull TimeUnit unit)
+            throws IOException, InterruptedException, TimeoutException {
+        Shell shell = acquire();
+        boolean reusable = false;
+
+        // Set by whichever comes first, the end of the command or the timeout
+        AtomicBoolean finished = new AtomicBoolean();
+        Runnable timeoutRunnable = () -> {
+            if (finished.compareAndSet(false, true)) {
+                Log.w(TAG, "command timed out, destroy the shell");
+                shell.destroy();
+            }
+        };
+        if (timeout > 0) {
+            handler.postDelayed(timeoutRunnable, unit.toMillis(timeout));
+        }
+
+        try {
+            Result result;
+            try {
+                result = shell.run(command);
+            } catch (IOException e) {
+                // Reading from a destroyed shell may fail instead of reaching the end
+                if (finished.get()) {
+                    throw timeoutException(timeout, unit);
+                }
+                throw e;
+            }
+            if (!finished.compareAndSet(false, true)) {
+                throw timeoutException(timeout, unit);
+            }
+            if (result != null) {
+                reusable = true;
+                return result;
+            }
+            return new Result(shell.process.waitFor(), new byte[0]);
+        } finally {
+            handler.removeCallbacks(timeoutRunnable);
+            release(shell, reusable);
+        }
+    }
+
+    private static TimeoutException timeoutException(long timeout, TimeUnit unit) {
+        return new TimeoutException("command not finished in " + unit.toMillis(timeout) + " ms");
+    }
+
+    /**
+     * Destroy all idle shells. Shells running commands are destroyed when the commands finish.
+     */
+    public void close() {
+        ArrayDeque<Shell> shells;
+        synchronized (this) {
+            closed = true;
+            shells = new ArrayDeque<>(idleShells);
+            size -= idleShells.size();
+            idleShells.clear();
+            notifyAll();
+        }
+        handler.removeCallbacks(evictRunnable);
+
+        for (Shell shell : shells) {
+            shell.destroy();
+        }
+    }
+
+    private Shell acquire() throws InterruptedException {
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("pool is closed");
+                }
+
+                Shell shell;
+                while ((shell = idleShells.pollFirst()) != null) {
+                    if (shell.isAlive()) {
+                        return shell;
+                    }
+                    size--;
+                }
+
+                if (size < maxSize) {
+                    size++;
+                    break;
+                }
+                wait();
+            }
+        }
+
+        try {
+            return new Shell();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void release(Shell shell, boolean reusable) {
+        synchronized (this) {
+            if (reusable && !closed && shell.isAlive()) {
+                shell.lastUsed = SystemClock.elapsedRealtime();
+                idleShells.addFirst(shell);
+                if (!evictScheduled) {
+                    evictScheduled = true;
+                    handler.postDelayed(evictRunnable, idleTimeout);
+                }
+                notifyAll();
+                return;
+            }
+            size--;
+            notifyAll();
+        }
+        shell.destroy();
+    }
+
+    private void evictIdleShells() {
+        ArrayDeque<Shell> evicted = new ArrayDeque<>();
+        synchronized (this) {
+            evictScheduled = false;
+            long now = SystemClock.elapsedRealtime();
+            for (Iterator<Shell> it = idleShells.descendingIterator(); it.hasNext(); ) {
+                Shell shell = it.next();
+                if (shell.isAlive() && now - shell.lastUsed < idleTimeout) {
+                    break;
+                }
+                it.remove();
+                evicted.add(shell);
+                size--;
+            }
+
+            if (!idleShells.isEmpty()) {
+                evictScheduled = true;
+                handler.postDelayed(evictRunnable, idleShells.peekLast().lastUsed + idleTimeout - now);
+            }
+            notifyAll();
+        }
+
+        for (Shell shell : evicted) {
+            shell.destroy();
+        }
+    }
+}
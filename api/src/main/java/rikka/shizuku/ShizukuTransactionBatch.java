@@ -0,0 +1,183 @@
+package rikka.shizuku;
+
+import android.os.IBinder;
+import android.os.Parcel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Execute multiple binder calls at remote service with a single {@link Shizuku#transactRemote(Parcel, Parcel, int)}
+ * round trip.
+ * <p>
+ * example:
+ * <br><code>ShizukuTransactionBatch batch = new ShizukuTransactionBatch();
+ * <br>Parcel data = batch.add(SystemServiceHelper.getSystemService("package"), code);
+ * <br>data.writeInterfaceToken("android.content.pm.IPackageManager");
+ * <br>\/* write data of the binder call you want*\/
+ * <br>Parcel[] replies = batch.transact();</code>
+ * <p>
+ * If the remote service does not support batch transaction (below version 13), calls will be sent one by one.
+ *
+ * @since added from version 13
+ */
+public class ShizukuTransactionBatch {
+
+    private static class Call {
+
+        final IBinder binder;
+        final int code;
+        final Parcel data;
+
+        Call(IBinder binder, int code, Parcel data) {
+            this.binder = binder;
+            this.code = code;
+            this.data = data;
+        }
+    }
+
+    private final List<Call> calls = new ArrayList<>();
+
+    /**
+     * Add a binder call to the batch.
+     *
+     * @param binder binder you want to use at remote
+     * @param code   transact code you want to use
+     * @return data parcel of this call, it is owned by the batch and must not be recycled by the caller
+     */
+    @NonNull
+    public Parcel add(@NonNull IBinder binder, int code) {
+        Parcel data = Parcel.obtain();
+        calls.add(new Call(Objects.requireNonNull(binder), code, data));
+        return data;
+    }
+
+    /**
+     * Returns the number of calls in the batch.
+     *
+     * @return number of calls
+     */
+    public int size() {
+        return calls.size();
+    }
+
+    /**
+     * Execute all calls at remote service. The batch is cleared after this method returns.
+     *
+     * @return replies of the calls, in the same order as they are added, the caller must recycle them
+     */
+    @NonNull
+    public Parcel[] transact() {
+        Parcel[] replies = new Parcel[calls.size()];
+        if (calls.isEmpty()) {
+            return replies;
+        }
+
+        try {
+            if (!transactBatch(replies)) {
+                transactOneByOne(replies);
+            }
+        } catch (RuntimeException e) {
+            for (Parcel reply : replies) {
+                if (reply != null) {
+                    reply.recycle();
+                }
+            }
+            throw e;
+        } finally {
+            recycle();
+        }
+        return replies;
+    }
+
+    /**
+     * Discard all calls in the batch.
+     */
+    public void recycle() {
+        for (Call call : calls) {
+            call.data.recycle();
+        }
+        calls.clear();
+    }
+
+    private boolean transactBatch(Parcel[] replies) {
+        Parcel data = ShizukuParcelPool.obtain();
+        Parcel reply = ShizukuParcelPool.obtain();
+        try {
+            writeBatch(data);
+
+            if (!Shizuku.transactRemoteBatch(data, reply)) {
+                return false;
+            }
+
+            readReplies(reply, replies);
+            return true;
+        } finally {
+            ShizukuParcelPool.recycle(data);
+            ShizukuParcelPool.recycle(reply);
+        }
+    }
+
+    /**
+     * Write the data of {@link ShizukuApiConstants#BINDER_TRANSACTION_transactBatch}.
+     */
+    @VisibleForTesting
+    void writeBatch(@NonNull Parcel data) {
+        int dataSize = 0;
+        for (Call call : calls) {
+            dataSize += call.data.dataSize();
+        }
+
+        data.setDataCapacity(dataSize + calls.size() * 16 + 128);
+        data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+        data.writeInt(calls.size());
+        for (Call call : calls) {
+            data.writeStrongBinder(call.binder);
+            data.writeInt(call.code);
+            data.writeInt(call.data.dataSize());
+            data.appendFrom(call.data, 0, call.data.dataSize());
+        }
+    }
+
+    /**
+     * Read the reply of {@link ShizukuApiConstants#BINDER_TRANSACTION_transactBatch}, replies of the calls are stored
+     * in <code>replies</code>.
+     */
+    @VisibleForTesting
+    static void readReplies(@NonNull Parcel reply, @NonNull Parcel[] replies) {
+        // The whole batch is rejected (e.g., SecurityException), nothing is executed
+        reply.readException();
+
+        for (int i = 0; i < replies.length; i++) {
+            int size = reply.readInt();
+            int position = reply.dataPosition();
+
+            replies[i] = Parcel.obtain();
+            replies[i].appendFrom(reply, position, size);
+            replies[i].setDataPosition(0);
+            reply.setDataPosition(position + size);
+        }
+    }
+
+    private void transactOneByOne(Parcel[] replies) {
+        for (int i = 0; i < replies.length; i++) {
+            Call call = calls.get(i);
+            Parcel data = ShizukuParcelPool.obtain();
+            try {
+                data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);
+                data.writeStrongBinder(call.binder);
+                data.writeInt(call.code);
+                data.appendFrom(call.data, 0, call.data.dataSize());
+
+                replies[i] = Parcel.obtain();
+                Shizuku.transactRemote(data, replies[i], 0);
+            } finally {
+                ShizukuParcelPool.recycle(data);
+            }
+        }
+    }
+}
@@ -1,27 +1,60 @@
 package rikka.shizuku;
 
 import android.annotation.SuppressLint;
+import android.os.Build;
 import android.os.IBinder;
 import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressLint("PrivateApi")
 public class SystemServiceHelper {
 
-    private static final Map<String, IBinder> SYSTEM_SERVICE_CACHE = new HashMap<>();
-    private static final Map<String, Integer> TRANSACT_CODE_CACHE = new HashMap<>();
+    // Reads are lock-free, lookups of missing keys are done under the lock of the key so that each key is looked up
+    // only once, and a slow lookup does not block lookups of other keys
+    private static final ConcurrentMap<String, IBinder> SYSTEM_SERVICE_CACHE = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Object> SYSTEM_SERVICE_LOCKS = new ConcurrentHashMap<>();
+    // Class name -> (method name -> transaction code), indexed under the lock of the class like services
+    private static final ConcurrentMap<String, Map<String, Integer>> TRANSACT_CODE_CACHE = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Object> TRANSACT_CODE_LOCKS = new ConcurrentHashMap<>();
 
-    private static Method getService;
+    // Services which are not found, value is the time (SystemClock#elapsedRealtime) the entry expires
+    private static final Map<String, Long> MISSING_SYSTEM_SERVICE_CACHE = new ConcurrentHashMap<>();
+    private static final long MISSING_SYSTEM_SERVICE_CACHE_TIMEOUT = 1000;
+
+    // Classes which are not found, value is the time (SystemClock#elapsedRealtime) the entry expires
+    private static final Map<String, Long> MISSING_CLASS_CACHE = new ConcurrentHashMap<>();
+    private static final long MISSING_CLASS_CACHE_TIMEOUT = 1000;
+
+    @VisibleForTesting
+    static Method getService;
+
+    // Number of classes indexed by reflection
+    @VisibleForTesting
+    static final AtomicInteger INDEX_BUILD_COUNT = new AtomicInteger();
 
     static {
         try {
@@ -34,68 +67,204 @@ public class SystemServiceHelper {
 
     /**
      * Returns a reference to a service with the given name.
+     * <p>
+     * The returned binder is cached until it is dead (for example, system_server restarts). If the service doesn't
+     * exist, <code>null</code> is cached for a short time.
      *
      * @param name the name of the service to get such as "package" for android.content.pm.IPackageManager
      * @return a reference to the service, or <code>null</code> if the service doesn't exist
      */
     public static IBinder getSystemService(@NonNull String name) {
-        IBinder binder = SYSTEM_SERVICE_CACHE.get(name);
-        if (binder == null) {
+        IBinder binder = getCachedSystemService(name);
+        if (binder != null) return binder;
+
+        Long expireTime = MISSING_SYSTEM_SERVICE_CACHE.get(name);
+        if (expireTime != null && SystemClock.elapsedRealtime() < expireTime) return null;
+
+        synchronized (getLock(SYSTEM_SERVICE_LOCKS, name)) {
+            binder = getCachedSystemService(name);
+            if (binder != null) return binder;
+
             try {
                 binder = (IBinder) getService.invoke(null, name);
             } catch (IllegalAccessException | InvocationTargetException e) {
                 Log.w("SystemServiceHelper", Log.getStackTraceString(e));
             }
-            SYSTEM_SERVICE_CACHE.put(name, binder);
+            if (binder == null) {
+                MISSING_SYSTEM_SERVICE_CACHE.put(name, SystemClock.elapsedRealtime() + MISSING_SYSTEM_SERVICE_CACHE_TIMEOUT);
+                return null;
+            }
+            MISSING_SYSTEM_SERVICE_CACHE.remove(name);
+
+            final IBinder service = binder;
+            try {
+                service.linkToDeath(() -> SYSTEM_SERVICE_CACHE.remove(name, service), 0);
+                SYSTEM_SERVICE_CACHE.put(name, service);
+            } catch (RemoteException e) {
+                Log.w("SystemServiceHelper", "service " + name + " is dead");
+            }
+        }
+        return binder;
+    }
+
+    private static Object getLock(@NonNull ConcurrentMap<String, Object> locks, @NonNull String name) {
+        Object lock = locks.get(name);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(name, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    private static IBinder getCachedSystemService(@NonNull String name) {
+        IBinder binder = SYSTEM_SERVICE_CACHE.get(name);
+        if (binder != null && !binder.isBinderAlive()) {
+            // In case the death notification is not delivered yet
+            SYSTEM_SERVICE_CACHE.remove(name, binder);
+            return null;
         }
         return binder;
     }
 
     /**
      * Returns transaction code from given class and method name.
+     * <p>
+     * All transaction codes of the class are indexed when the class is used for the first time. If the class doesn't
+     * exist, <code>null</code> is cached for a short time.
      *
      * @param className  class name such as "android.content.pm.IPackageManager$Stub"
      * @param methodName method name such as "getInstalledPackages"
      * @return transaction code, or <code>null</code> if the class or the method doesn't exist
      */
     public static Integer getTransactionCode(@NonNull String className, @NonNull String methodName) {
-        final String fieldName = "TRANSACTION_" + methodName;
-        final String key = className + "." + fieldName;
+        Map<String, Integer> index = TRANSACT_CODE_CACHE.get(className);
+        if (index == null) {
+            Long expireTime = MISSING_CLASS_CACHE.get(className);
+            if (expireTime != null && SystemClock.elapsedRealtime() < expireTime) return null;
+
+            synchronized (getLock(TRANSACT_CODE_LOCKS, className)) {
+                index = TRANSACT_CODE_CACHE.get(className);
+                if (index == null) {
+                    index = indexTransactionCodes(className);
+                    if (index == null) {
+                        MISSING_CLASS_CACHE.put(className, SystemClock.elapsedRealtime() + MISSING_CLASS_CACHE_TIMEOUT);
+                        return null;
+                    }
+                    MISSING_CLASS_CACHE.remove(className);
+                    TRANSACT_CODE_CACHE.put(className, index);
+                }
+            }
+        }
+        return index.get(methodName);
+    }
 
-        Integer value = TRANSACT_CODE_CACHE.get(key);
-        if (value != null) return value;
+    /**
+     * Returns null if the class doesn't exist.
+     */
+    private static Map<String, Integer> indexTransactionCodes(@NonNull String className) {
+        final String prefix = "TRANSACTION_";
+        final Map<String, Integer> index = new HashMap<>();
 
+        INDEX_BUILD_COUNT.incrementAndGet();
         try {
             final Class<?> cls = Class.forName(className);
-            Field declaredField = null;
-            try {
-                declaredField = cls.getDeclaredField(fieldName);
-            } catch (NoSuchFieldException e) {
-                for (Field f : cls.getDeclaredFields()) {
-                    if (f.getType() != int.class)
-                        continue;
-
-                    String name = f.getName();
-                    if (name.startsWith(fieldName + "_")
-                            && TextUtils.isDigitsOnly(name.substring(fieldName.length() + 1))) {
-                        declaredField = f;
-                        break;
-                    }
+            final Field[] fields = cls.getDeclaredFields();
+
+            for (Field f : fields) {
+                String name = f.getName();
+                if (f.getType() != int.class || !name.startsWith(prefix))
+                    continue;
+
+                f.setAccessible(true);
+                index.put(name.substring(prefix.length()), f.getInt(null));
+            }
+
+            // Overloaded methods are named like TRANSACTION_method_1, used when TRANSACTION_method doesn't exist
+            for (Field f : fields) {
+                String name = f.getName();
+                if (f.getType() != int.class || !name.startsWith(prefix))
+                    continue;
+
+                int separator = name.lastIndexOf('_');
+                if (separator <= prefix.length() || separator == name.length() - 1
+                        || !TextUtils.isDigitsOnly(name.substring(separator + 1)))
+                    continue;
+
+                String methodName = name.substring(prefix.length(), separator);
+                if (!index.containsKey(methodName)) {
+                    index.put(methodName, f.getInt(null));
                 }
             }
-            if (declaredField == null) {
-                return null;
+        } catch (ClassNotFoundException e) {
+            Log.w("SystemServiceHelper", "class " + className + " is not found");
+            return null;
+        } catch (IllegalAccessException e) {
+            Log.w("SystemServiceHelper", Log.getStackTraceString(e));
+        }
+        return index;
+    }
+
+    /**
+     * Write transaction codes which have been indexed to the given file, so that they can be loaded with
+     * {@link #loadTransactionCodes(File)} without reflection after the app restarts.
+     *
+     * @param file file to write
+     * @throws IOException if the file can't be written
+     * @since added from version 13
+     */
+    public static void saveTransactionCodes(@NonNull File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            Map<String, Map<String, Integer>> snapshot = new HashMap<>(TRANSACT_CODE_CACHE);
+
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Map<String, Integer>> cls : snapshot.entrySet()) {
+                out.writeUTF(cls.getKey());
+                out.writeInt(cls.getValue().size());
+                for (Map.Entry<String, Integer> method : cls.getValue().entrySet()) {
+                    out.writeUTF(method.getKey());
+                    out.writeInt(method.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Load transaction codes written by {@link #saveTransactionCodes(File)}. Nothing is loaded if the file is written
+     * on a different build of the system (by comparing {@link Build#FINGERPRINT}).
+     *
+     * @param file file to read
+     * @return if transaction codes are loaded
+     * @throws IOException if the file can't be read
+     * @since added from version 13
+     */
+    public static boolean loadTransactionCodes(@NonNull File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!Build.FINGERPRINT.equals(in.readUTF())) {
+                return false;
             }
 
-            declaredField.setAccessible(true);
-            value = declaredField.getInt(cls);
+            Map<String, Map<String, Integer>> snapshot = new HashMap<>();
+            int classCount = in.readInt();
+            for (int i = 0; i < classCount; i++) {
+                String className = in.readUTF();
+                int methodCount = in.readInt();
+                Map<String, Integer> index = new HashMap<>(methodCount);
+                for (int j = 0; j < methodCount; j++) {
+                    String methodName = in.readUTF();
+                    index.put(methodName, in.readInt());
+                }
+                snapshot.put(className, index);
+            }
 
-            TRANSACT_CODE_CACHE.put(key, value);
-            return value;
-        } catch (ClassNotFoundException | IllegalAccessException e) {
-            e.printStackTrace();
+            for (Map.Entry<String, Map<String, Integer>> cls : snapshot.entrySet()) {
+                TRANSACT_CODE_CACHE.putIfAbsent(cls.getKey(), cls.getValue());
+            }
+            return true;
         }
-        return null;
     }
 
     /**
@@ -0,0 +1,46 @@
+package rikka.shizuku.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generate a class which calls the system service through {@link rikka.shizuku.Shizuku#transactRemote(android.os.Parcel, android.os.Parcel, int)}
+ * for the annotated interface. Requires the annotation processor from <code>dev.rikka.shizuku:processor</code>.
+ * <p>
+ * The generated class is named <code>InterfaceNameShizukuProxy</code> and is in the same package. Transaction codes
+ * are resolved once when the generated class is initialized, calls do not use reflection.
+ * <p>
+ * example:
+ * <br><code>&#64;ShizukuSystemService(name = "package", descriptor = "android.content.pm.IPackageManager")
+ * <br>public interface PackageManagerApi {
+ * <br>&nbsp;&nbsp;&nbsp;&nbsp;ParceledListSlice&lt;PackageInfo&gt; getInstalledPackages(int flags, int userId);
+ * <br>}
+ * <br>
+ * <br>new PackageManagerApiShizukuProxy().getInstalledPackages(0, 0);</code>
+ * <p>
+ * Supported parameter and return types are primitive types, String, IBinder, AIDL interfaces, Parcelable,
+ * arrays of primitive types and String, List of String and List of Parcelable.
+ *
+ * @since added from version 13
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface ShizukuSystemService {
+
+    /**
+     * System service name, such as "package".
+     */
+    String name();
+
+    /**
+     * Interface descriptor of the system service, such as "android.content.pm.IPackageManager".
+     */
+    String descriptor();
+
+    /**
+     * Class to read transaction codes from. Default to <code>descriptor + "$Stub"</code>.
+     */
+    String stubClass() default "";
+}
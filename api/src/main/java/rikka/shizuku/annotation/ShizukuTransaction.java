@@ -0,0 +1,31 @@
+package rikka.shizuku.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Customize how a method of an interface annotated with {@link ShizukuSystemService} is mapped to a transaction.
+ *
+ * @since added from version 13
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface ShizukuTransaction {
+
+    /**
+     * Method name in the Stub class, such as "getUsers". Default to the name of the annotated method.
+     */
+    String name() default "";
+
+    /**
+     * Transaction code. If set, the transaction code is not read from the Stub class.
+     */
+    int code() default -1;
+
+    /**
+     * If the call is oneway. Oneway methods must return void.
+     */
+    boolean oneway() default false;
+}
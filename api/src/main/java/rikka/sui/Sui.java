@@ -4,6 +4,7 @@ import android.os.IBinder;
 import android.os.Parcel;
 
 import rikka.shizuku.Shizuku;
+import rikka.shizuku.ShizukuParcelPool;
 import rikka.shizuku.SystemServiceHelper;
 
 public class Sui {
@@ -17,8 +18,8 @@ public class Sui {
         IBinder binder = SystemServiceHelper.getSystemService(BRIDGE_SERVICE_NAME);
         if (binder == null) return null;
 
-        Parcel data = Parcel.obtain();
-        Parcel reply = Parcel.obtain();
+        Parcel data = ShizukuParcelPool.obtain();
+        Parcel reply = ShizukuParcelPool.obtain();
         try {
             data.writeInterfaceToken(BRIDGE_SERVICE_DESCRIPTOR);
             data.writeInt(BRIDGE_ACTION_GET_BINDER);
@@ -31,8 +32,8 @@ public class Sui {
         } catch (Throwable e) {
             e.printStackTrace();
         } finally {
-            data.recycle();
-            reply.recycle();
+            ShizukuParcelPool.recycle(data);
+            ShizukuParcelPool.recycle(reply);
         }
         return null;
     }
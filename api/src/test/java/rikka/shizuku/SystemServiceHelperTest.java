@@ -0,0 +1,280 @@
+package rikka.shizuku;
+
+import android.os.Binder;
+import android.os.IBinder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Concurrent access to {@link SystemServiceHelper#getSystemService(String)}, with ServiceManager replaced by
+ * {@link FakeServiceManager}, and to {@link SystemServiceHelper#getTransactionCode(String, String)}, with Stub classes
+ * like {@link FakeStub1}.
+ */
+public class SystemServiceHelperTest {
+
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 1000;
+
+    public static class FakeServiceManager {
+
+        static final ConcurrentHashMap<String, AtomicInteger> LOOKUPS = new ConcurrentHashMap<>();
+        static final ConcurrentHashMap<String, IBinder> SERVICES = new ConcurrentHashMap<>();
+        static volatile CountDownLatch slowLookupStarted;
+        static volatile CountDownLatch slowLookupReleased;
+
+        public static IBinder getService(String name) throws InterruptedException {
+            LOOKUPS.putIfAbsent(name, new AtomicInteger());
+            LOOKUPS.get(name).incrementAndGet();
+
+            if (name.startsWith("slow")) {
+                slowLookupStarted.countDown();
+                slowLookupReleased.await();
+            }
+            return SERVICES.get(name);
+        }
+    }
+
+    private static class FakeBinder extends Binder {
+
+        @Override
+        public boolean isBinderAlive() {
+            return true;
+        }
+    }
+
+    public static class FakeStub1 {
+
+        // Slow to load like a large Stub class, so that lookups of other threads arrive while it is indexed
+        static {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        static final int TRANSACTION_getPackageInfo = 1;
+        static final int TRANSACTION_getInstalledPackages = 2;
+        static final int TRANSACTION_getInstalledPackages_1 = 3;
+    }
+
+    public static class FakeStub2 {
+
+        static final int TRANSACTION_getUsers = 11;
+        static final int TRANSACTION_getUsers_1 = 12;
+        static final int TRANSACTION_getUsers_2 = 13;
+    }
+
+    public static class FakeStub3 {
+
+        static final int TRANSACTION_getUsers = 21;
+        static final int TRANSACTION_getUsers_1 = 22;
+        static final int TRANSACTION_getUsers_2 = 23;
+    }
+
+    public static class FakeStub4 {
+
+        static final int TRANSACTION_forceStopPackage_1 = 31;
+        static final int TRANSACTION_forceStopPackage_2 = 32;
+    }
+
+    // Outside of SlowStub, since setting its fields would load it
+    static volatile CountDownLatch slowStubLoadStarted;
+    static volatile CountDownLatch slowStubLoadReleased;
+
+    public static class SlowStub {
+
+        static {
+            slowStubLoadStarted.countDown();
+            try {
+                slowStubLoadReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        static final int TRANSACTION_getUsers = 41;
+    }
+
+    public static class FakeStub5 {
+
+        static final int TRANSACTION_getUsers = 51;
+    }
+
+    private Method originalGetService;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws NoSuchMethodException {
+        originalGetService = SystemServiceHelper.getService;
+        SystemServiceHelper.getService = FakeServiceManager.class.getMethod("getService", String.class);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        SystemServiceHelper.getService = originalGetService;
+        FakeServiceManager.LOOKUPS.clear();
+        FakeServiceManager.SERVICES.clear();
+    }
+
+    @Test
+    public void concurrentLookupsOfSameNameResolveOnce() throws Exception {
+        final String name = "same";
+        final IBinder service = new FakeBinder();
+        FakeServiceManager.SERVICES.put(name, service);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    start.await();
+                    for (int j = 0; j < ITERATIONS; j++) {
+                        if (SystemServiceHelper.getSystemService(name) != service) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        start.countDown();
+
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, FakeServiceManager.LOOKUPS.get(name).get());
+    }
+
+    @Test
+    public void slowLookupDoesNotBlockOtherNames() throws Exception {
+        final IBinder fast = new FakeBinder();
+        FakeServiceManager.SERVICES.put("slow", new FakeBinder());
+        FakeServiceManager.SERVICES.put("fast", fast);
+        FakeServiceManager.slowLookupStarted = new CountDownLatch(1);
+        FakeServiceManager.slowLookupReleased = new CountDownLatch(1);
+
+        Future<IBinder> slowResult = executor.submit(new Callable<IBinder>() {
+            @Override
+            public IBinder call() {
+                return SystemServiceHelper.getSystemService("slow");
+            }
+        });
+        assertTrue(FakeServiceManager.slowLookupStarted.await(10, TimeUnit.SECONDS));
+
+        try {
+            Future<IBinder> fastResult = executor.submit(new Callable<IBinder>() {
+                @Override
+                public IBinder call() {
+                    return SystemServiceHelper.getSystemService("fast");
+                }
+            });
+            assertSame(fast, fastResult.get(10, TimeUnit.SECONDS));
+        } finally {
+            FakeServiceManager.slowLookupReleased.countDown();
+        }
+        assertSame(FakeServiceManager.SERVICES.get("slow"), slowResult.get(10, TimeUnit.SECONDS));
+        assertEquals(1, FakeServiceManager.LOOKUPS.get("slow").get());
+    }
+
+    @Test
+    public void concurrentTransactionCodeLookupsIndexEachClassOnce() throws Exception {
+        final Class<?>[] classes = {FakeStub1.class, FakeStub2.class, FakeStub3.class, FakeStub4.class};
+        // Class, method, expected code, overloads are resolved to the first one if the plain name doesn't exist
+        final Object[][] lookups = {
+                {FakeStub1.class, "getPackageInfo", 1},
+                {FakeStub1.class, "getInstalledPackages", 2},
+                {FakeStub1.class, "getUsers", null},
+                {FakeStub2.class, "getUsers", 11},
+                {FakeStub3.class, "getUsers", 21},
+                {FakeStub4.class, "forceStopPackage", 31},
+        };
+        int indexBuilds = SystemServiceHelper.INDEX_BUILD_COUNT.get();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            // Threads start from different classes, half of them race on the same class first
+            final int offset = i % 2 == 0 ? 0 : i;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    start.await();
+                    for (int j = 0; j < ITERATIONS; j++) {
+                        Object[] lookup = lookups[(j + offset) % lookups.length];
+                        Integer code = SystemServiceHelper.getTransactionCode(((Class<?>) lookup[0]).getName(), (String) lookup[1]);
+                        if (code == null ? lookup[2] != null : !code.equals(lookup[2])) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        start.countDown();
+
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(classes.length, SystemServiceHelper.INDEX_BUILD_COUNT.get() - indexBuilds);
+    }
+
+    @Test
+    public void slowIndexDoesNotBlockOtherClasses() throws Exception {
+        slowStubLoadStarted = new CountDownLatch(1);
+        slowStubLoadReleased = new CountDownLatch(1);
+
+        Future<Integer> slowResult = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return SystemServiceHelper.getTransactionCode(SlowStub.class.getName(), "getUsers");
+            }
+        });
+        assertTrue(slowStubLoadStarted.await(10, TimeUnit.SECONDS));
+
+        try {
+            Future<Integer> fastResult = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return SystemServiceHelper.getTransactionCode(FakeStub5.class.getName(), "getUsers");
+                }
+            });
+            assertEquals(Integer.valueOf(51), fastResult.get(10, TimeUnit.SECONDS));
+        } finally {
+            slowStubLoadReleased.countDown();
+        }
+        assertEquals(Integer.valueOf(41), slowResult.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void missingClassIsNotIndexed() {
+        int indexBuilds = SystemServiceHelper.INDEX_BUILD_COUNT.get();
+
+        assertNull(SystemServiceHelper.getTransactionCode("rikka.shizuku.MissingStub", "getUsers"));
+        // Cached for a short time like missing services, not as an empty index
+        assertNull(SystemServiceHelper.getTransactionCode("rikka.shizuku.MissingStub", "getUsers"));
+        assertEquals(1, SystemServiceHelper.INDEX_BUILD_COUNT.get() - indexBuilds);
+    }
+}
@@ -0,0 +1,64 @@
+package rikka.rish.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import rikka.rish.RishHost;
+
+/**
+ * Convert args or env of a new rish session to the C string block passed to the native start, with a typical
+ * environment of a shell (about 40 bytes per entry).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RishHostBenchmark {
+
+    // The method is private, a method handle in a static final field is as fast as a direct call once compiled
+    private static final MethodHandle CREATE_C_BYTES_FOR_STRING_ARRAY;
+
+    static {
+        try {
+            Method method = RishHost.class.getDeclaredMethod("createCBytesForStringArray", String[].class);
+            method.setAccessible(true);
+            CREATE_C_BYTES_FOR_STRING_ARRAY = MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Param({"1", "16", "64"})
+    public int entries;
+
+    private String[] array;
+
+    @Setup
+    public void setup() {
+        array = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            array[i] = "VARIABLE_" + i + "=/data/local/tmp/value/of/variable/" + i;
+        }
+    }
+
+    @Benchmark
+    public byte[] createCBytesForStringArray() throws Throwable {
+        return (byte[]) CREATE_C_BYTES_FOR_STRING_ARRAY.invokeExact(array);
+    }
+}
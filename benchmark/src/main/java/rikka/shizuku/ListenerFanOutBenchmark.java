@@ -0,0 +1,55 @@
+package rikka.shizuku;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Add callbacks to a {@link ShizukuFuture} and complete it, which is how results of async calls and process exits
+ * are delivered to listeners. Callbacks run in the completing thread. In the package of the library to reach the
+ * package-private constructor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ListenerFanOutBenchmark {
+
+    @Param({"1", "8", "64"})
+    public int listeners;
+
+    @Benchmark
+    public void complete(Blackhole blackhole) {
+        ShizukuFuture<Integer> future = new ShizukuFuture<>();
+        ShizukuFuture.Callback<Integer> callback = new ShizukuFuture.Callback<Integer>() {
+            @Override
+            public void onResult(@Nullable Integer result) {
+                blackhole.consume(result);
+            }
+
+            @Override
+            public void onError(@NonNull Throwable error) {
+                blackhole.consume(error);
+            }
+        };
+        for (int i = 0; i < listeners; i++) {
+            future.addCallback(callback, null);
+        }
+        future.complete(0);
+    }
+}
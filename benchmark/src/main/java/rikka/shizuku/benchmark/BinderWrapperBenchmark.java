@@ -0,0 +1,53 @@
+package rikka.shizuku.benchmark;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import rikka.shizuku.ShizukuBinderWrapper;
+
+/**
+ * A typical small call (interface token, a package name and flags) made through {@link ShizukuBinderWrapper}, like a
+ * proxy of an aidl interface does. The remote side is handled in the same process.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BinderWrapperBenchmark {
+
+    private final IBinder wrapper = new ShizukuBinderWrapper(new Binder());
+
+    @Benchmark
+    public int transact() throws RemoteException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken("android.content.pm.IPackageManager");
+            data.writeString("com.example");
+            data.writeInt(0);
+            wrapper.transact(1, data, reply, 0);
+            reply.setDataPosition(0);
+            reply.readException();
+            return reply.readInt();
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package rikka.shizuku.benchmark;
+
+import android.os.Binder;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import rikka.shizuku.Shizuku;
+import rikka.shizuku.ShizukuBinderWrapper;
+
+/**
+ * Latency and bytes copied on the client against payload size, for a call made with
+ * {@link ShizukuBinderWrapper#transact(int, Parcel, Parcel, int)} (the payload is written to a parcel, then copied
+ * after the header) and with {@link ShizukuBinderWrapper#obtainData(int)} (the payload is written after the header
+ * directly). The remote side is handled in the same process.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BinderWrapperPayloadBenchmark {
+
+    private static final int CODE = 1;
+
+    /**
+     * Bytes copied by {@link Parcel#appendFrom(Parcel, int, int)} and number of calls in each iteration, bytes copied
+     * per call is copiedBytes / calls.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+
+        public long copiedBytes;
+        public long calls;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            copiedBytes = 0;
+            calls = 0;
+        }
+    }
+
+    @Param({"64", "4096", "65536", "524288"})
+    public int payloadSize;
+
+    private final ShizukuBinderWrapper wrapper = new ShizukuBinderWrapper(new Binder());
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        payload = new byte[payloadSize];
+    }
+
+    @Benchmark
+    public int transact(Counters counters) throws RemoteException {
+        long copied = Parcel.getCopiedBytes();
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken("android.content.pm.IPackageManager");
+            data.writeByteArray(payload);
+            wrapper.transact(CODE, data, reply, 0);
+            return readReply(reply);
+        } finally {
+            data.recycle();
+            reply.recycle();
+            count(counters, copied);
+        }
+    }
+
+    @Benchmark
+    public int obtainData(Counters counters) {
+        long copied = Parcel.getCopiedBytes();
+        Parcel data = wrapper.obtainData(CODE);
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken("android.content.pm.IPackageManager");
+            data.writeByteArray(payload);
+            Shizuku.transactRemote(data, reply, 0);
+            return readReply(reply);
+        } finally {
+            data.recycle();
+            reply.recycle();
+            count(counters, copied);
+        }
+    }
+
+    private static int readReply(Parcel reply) {
+        reply.setDataPosition(0);
+        reply.readException();
+        return reply.readInt();
+    }
+
+    private static void count(Counters counters, long copiedBefore) {
+        counters.copiedBytes += Parcel.getCopiedBytes() - copiedBefore;
+        counters.calls++;
+    }
+}
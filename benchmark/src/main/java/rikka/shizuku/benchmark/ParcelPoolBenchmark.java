@@ -0,0 +1,47 @@
+package rikka.shizuku.benchmark;
+
+import android.os.Parcel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import rikka.shizuku.ShizukuParcelPool;
+
+/**
+ * Obtain and recycle a parcel from {@link ShizukuParcelPool} compared to the global pool of {@link Parcel},
+ * with several threads at the same time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ParcelPoolBenchmark {
+
+    @Benchmark
+    public int parcelPool() {
+        Parcel parcel = ShizukuParcelPool.obtain();
+        parcel.writeInt(1);
+        int size = parcel.dataSize();
+        ShizukuParcelPool.recycle(parcel);
+        return size;
+    }
+
+    @Benchmark
+    public int globalPool() {
+        Parcel parcel = Parcel.obtain();
+        parcel.writeInt(1);
+        int size = parcel.dataSize();
+        parcel.recycle();
+        return size;
+    }
+}
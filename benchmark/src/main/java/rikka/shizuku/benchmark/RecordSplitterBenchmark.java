@@ -0,0 +1,61 @@
+package rikka.shizuku.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import rikka.shizuku.ShizukuRecordSplitter;
+
+/**
+ * Split 1 MB of process output (lines of 80 bytes) which arrives in chunks, like output read from a pipe.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecordSplitterBenchmark {
+
+    private static final int OUTPUT_SIZE = 1024 * 1024;
+
+    @Param({"512", "8192"})
+    public int chunkSize;
+
+    private byte[] output;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder(OUTPUT_SIZE);
+        for (int i = 0; sb.length() < OUTPUT_SIZE; i++) {
+            String line = "line " + i + " ";
+            sb.append(line);
+            for (int j = line.length(); j < 79; j++) {
+                sb.append('x');
+            }
+            sb.append('\n');
+        }
+        output = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void split(Blackhole blackhole) {
+        ShizukuRecordSplitter splitter = new ShizukuRecordSplitter((buffer, offset, length) -> blackhole.consume(length));
+        for (int offset = 0; offset < output.length; offset += chunkSize) {
+            splitter.feed(output, offset, Math.min(chunkSize, output.length - offset));
+        }
+        splitter.finish();
+    }
+}
@@ -0,0 +1,75 @@
+package rikka.shizuku.benchmark;
+
+import android.os.Binder;
+import android.os.Parcel;
+import android.os.ServiceManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import rikka.shizuku.SystemServiceHelper;
+
+/**
+ * Cached lookups of {@link SystemServiceHelper} from several threads at the same time, which is what the app does
+ * after the first call. ServiceManager is a stand-in and the transaction codes come from {@link Stub}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SystemServiceHelperBenchmark {
+
+    private static final String SERVICE = "package";
+    private static final String INTERFACE = "android.content.pm.IPackageManager";
+    private static final String STUB = Stub.class.getName();
+
+    /**
+     * Like the Stub class generated from aidl, with an overloaded method.
+     */
+    public static class Stub {
+
+        static final int TRANSACTION_getPackageInfo = 1;
+        static final int TRANSACTION_getApplicationInfo = 2;
+        static final int TRANSACTION_getInstalledPackages = 3;
+        static final int TRANSACTION_getInstalledPackages_1 = 4;
+        static final int TRANSACTION_getPackageUid = 5;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ServiceManager.addService(SERVICE, new Binder());
+    }
+
+    @Benchmark
+    public Object getSystemService() {
+        return SystemServiceHelper.getSystemService(SERVICE);
+    }
+
+    @Benchmark
+    public Integer getTransactionCode() {
+        return SystemServiceHelper.getTransactionCode(STUB, "getInstalledPackages");
+    }
+
+    @Benchmark
+    public int obtainParcel() {
+        Parcel data = SystemServiceHelper.obtainParcel(SERVICE, INTERFACE, STUB, "getPackageUid");
+        int size = data.dataSize();
+        data.recycle();
+        return size;
+    }
+}
@@ -0,0 +1,56 @@
+package rikka.shizuku.benchmark;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import rikka.shizuku.ShizukuTransactionBatch;
+
+/**
+ * Frame calls into a batch and split the batch reply, the remote side is handled in the same process.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransactionBatchBenchmark {
+
+    private static final IBinder BINDER = new Binder();
+
+    @Param({"1", "16", "64"})
+    public int calls;
+
+    @Benchmark
+    public int transact() {
+        ShizukuTransactionBatch batch = new ShizukuTransactionBatch();
+        for (int i = 0; i < calls; i++) {
+            Parcel data = batch.add(BINDER, i + 1);
+            data.writeInterfaceToken("android.content.pm.IPackageManager");
+            data.writeString("com.example");
+            data.writeInt(0);
+        }
+
+        int sum = 0;
+        for (Parcel reply : batch.transact()) {
+            reply.readException();
+            sum += reply.readInt();
+            reply.recycle();
+        }
+        return sum;
+    }
+}
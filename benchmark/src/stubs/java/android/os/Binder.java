@@ -0,0 +1,51 @@
+package android.os;
+
+import java.io.FileDescriptor;
+
+/**
+ * Stand-in of a local binder which is always alive and handles no transactions.
+ */
+public class Binder implements IBinder {
+
+    @Override
+    public String getInterfaceDescriptor() {
+        return null;
+    }
+
+    @Override
+    public boolean pingBinder() {
+        return true;
+    }
+
+    @Override
+    public boolean isBinderAlive() {
+        return true;
+    }
+
+    @Override
+    public IInterface queryLocalInterface(String descriptor) {
+        return null;
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, String[] args) {
+    }
+
+    @Override
+    public void dumpAsync(FileDescriptor fd, String[] args) {
+    }
+
+    @Override
+    public boolean transact(int code, Parcel data, Parcel reply, int flags) {
+        return false;
+    }
+
+    @Override
+    public void linkToDeath(DeathRecipient recipient, int flags) {
+    }
+
+    @Override
+    public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+        return true;
+    }
+}
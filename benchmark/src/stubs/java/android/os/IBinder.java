@@ -0,0 +1,33 @@
+package android.os;
+
+import java.io.FileDescriptor;
+
+public interface IBinder {
+
+    int FIRST_CALL_TRANSACTION = 0x00000001;
+
+    int FLAG_ONEWAY = 0x00000001;
+
+    interface DeathRecipient {
+
+        void binderDied();
+    }
+
+    String getInterfaceDescriptor() throws RemoteException;
+
+    boolean pingBinder();
+
+    boolean isBinderAlive();
+
+    IInterface queryLocalInterface(String descriptor);
+
+    void dump(FileDescriptor fd, String[] args) throws RemoteException;
+
+    void dumpAsync(FileDescriptor fd, String[] args) throws RemoteException;
+
+    boolean transact(int code, Parcel data, Parcel reply, int flags) throws RemoteException;
+
+    void linkToDeath(DeathRecipient recipient, int flags) throws RemoteException;
+
+    boolean unlinkToDeath(DeathRecipient recipient, int flags);
+}
@@ -0,0 +1,173 @@
+package android.os;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stand-in of Parcel backed by a byte array. Like the real one, {@link #obtain()} and {@link #recycle()} use a global
+ * pool guarded by a lock, binders are written inline as handles.
+ * <p>
+ * Bytes copied from parcel to parcel by {@link #appendFrom(Parcel, int, int)} are counted per thread, see
+ * {@link #getCopiedBytes()}.
+ */
+public final class Parcel {
+
+    private static final ThreadLocal<long[]> COPIED_BYTES = ThreadLocal.withInitial(() -> new long[1]);
+
+    private static final int POOL_SIZE = 6;
+    private static final Parcel[] POOL = new Parcel[POOL_SIZE];
+
+    private byte[] data = new byte[0];
+    private int size;
+    private int position;
+
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        synchronized (POOL) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                Parcel p = POOL[i];
+                if (p != null) {
+                    POOL[i] = null;
+                    return p;
+                }
+            }
+        }
+        return new Parcel();
+    }
+
+    public void recycle() {
+        size = 0;
+        position = 0;
+        synchronized (POOL) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                if (POOL[i] == null) {
+                    POOL[i] = this;
+                    return;
+                }
+            }
+        }
+    }
+
+    public int dataSize() {
+        return size;
+    }
+
+    public int dataPosition() {
+        return position;
+    }
+
+    public int dataCapacity() {
+        return data.length;
+    }
+
+    public void setDataSize(int size) {
+        ensureCapacity(size);
+        this.size = size;
+        if (position > size) {
+            position = size;
+        }
+    }
+
+    public void setDataPosition(int position) {
+        this.position = position;
+    }
+
+    public void setDataCapacity(int capacity) {
+        ensureCapacity(capacity);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 3 / 2));
+        }
+    }
+
+    private void grow(int length) {
+        ensureCapacity(position + length);
+        if (position + length > size) {
+            size = position + length;
+        }
+    }
+
+    public void appendFrom(Parcel parcel, int offset, int length) {
+        position = size;
+        grow(length);
+        System.arraycopy(parcel.data, offset, data, position, length);
+        position += length;
+        COPIED_BYTES.get()[0] += length;
+    }
+
+    /**
+     * Returns the number of bytes copied by {@link #appendFrom(Parcel, int, int)} in the current thread.
+     */
+    public static long getCopiedBytes() {
+        return COPIED_BYTES.get()[0];
+    }
+
+    public void writeByteArray(byte[] b) {
+        writeInt(b.length);
+        grow(b.length);
+        System.arraycopy(b, 0, data, position, b.length);
+        position += b.length;
+    }
+
+    public void writeInt(int val) {
+        grow(4);
+        data[position++] = (byte) (val >> 24);
+        data[position++] = (byte) (val >> 16);
+        data[position++] = (byte) (val >> 8);
+        data[position++] = (byte) val;
+    }
+
+    public int readInt() {
+        if (position + 4 > size) {
+            return 0;
+        }
+        return ((data[position++] & 0xff) << 24) | ((data[position++] & 0xff) << 16)
+                | ((data[position++] & 0xff) << 8) | (data[position++] & 0xff);
+    }
+
+    public void writeString(String val) {
+        byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        grow(bytes.length);
+        System.arraycopy(bytes, 0, data, position, bytes.length);
+        position += bytes.length;
+    }
+
+    public String readString() {
+        int length = readInt();
+        String val = new String(data, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return val;
+    }
+
+    public void writeInterfaceToken(String interfaceName) {
+        writeInt(0);
+        writeString(interfaceName);
+    }
+
+    public void enforceInterface(String interfaceName) {
+        readInt();
+        if (!interfaceName.equals(readString())) {
+            throw new SecurityException("Binder invocation to an incorrect interface");
+        }
+    }
+
+    public void writeStrongBinder(IBinder val) {
+        writeInt(System.identityHashCode(val));
+    }
+
+    public void writeNoException() {
+        writeInt(0);
+    }
+
+    public void readException() {
+        int code = readInt();
+        if (code != 0) {
+            throw new RuntimeException(readString());
+        }
+    }
+}
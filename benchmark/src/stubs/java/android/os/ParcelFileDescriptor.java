@@ -0,0 +1,25 @@
+package android.os;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public class ParcelFileDescriptor implements Closeable {
+
+    private final int fd;
+
+    private ParcelFileDescriptor(int fd) {
+        this.fd = fd;
+    }
+
+    public static ParcelFileDescriptor adoptFd(int fd) {
+        return new ParcelFileDescriptor(fd);
+    }
+
+    public int detachFd() {
+        return fd;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
@@ -0,0 +1,20 @@
+package android.os;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stand-in of ServiceManager, which is found by SystemServiceHelper with reflection.
+ */
+public final class ServiceManager {
+
+    private static final Map<String, IBinder> SERVICES = new ConcurrentHashMap<>();
+
+    public static IBinder getService(String name) {
+        return SERVICES.get(name);
+    }
+
+    public static void addService(String name, IBinder service) {
+        SERVICES.put(name, service);
+    }
+}
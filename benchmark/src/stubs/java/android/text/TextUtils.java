@@ -0,0 +1,13 @@
+package android.text;
+
+public class TextUtils {
+
+    public static boolean isDigitsOnly(CharSequence str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (!Character.isDigit(str.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,55 @@
+package rikka.shizuku;
+
+import android.os.Parcel;
+
+/**
+ * Stand-in of Shizuku which handles transactions in the same process, like the server does.
+ */
+public class Shizuku {
+
+    public static void transactRemote(Parcel data, Parcel reply, int flags) {
+        data.setDataPosition(0);
+        data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+        data.readInt(); // binder
+        int code = data.readInt();
+        if (reply != null) {
+            reply.writeNoException();
+            reply.writeInt(code);
+        }
+    }
+
+    public static void transactRemote(Parcel data, Parcel reply, int flags, String descriptor, int code) {
+        transactRemote(data, reply, flags);
+    }
+
+    // Completed before returning, so the timeout is never reached
+    static ShizukuFuture<Parcel> transactRemoteAsync(Parcel data, int flags, long timeout) {
+        ShizukuFuture<Parcel> future = new ShizukuFuture<>();
+        Parcel reply = Parcel.obtain();
+        transactRemote(data, reply, flags);
+        data.recycle();
+        reply.setDataPosition(0);
+        future.complete(reply);
+        return future;
+    }
+
+    static boolean transactRemoteBatch(Parcel data, Parcel reply) {
+        data.setDataPosition(0);
+        data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+        int count = data.readInt();
+        reply.writeNoException();
+        for (int i = 0; i < count; i++) {
+            data.readInt(); // binder
+            int code = data.readInt();
+            int size = data.readInt();
+            data.setDataPosition(data.dataPosition() + size);
+
+            // Reply of each call: no exception and the code
+            reply.writeInt(8);
+            reply.writeNoException();
+            reply.writeInt(code);
+        }
+        reply.setDataPosition(0);
+        return true;
+    }
+}
@@ -0,0 +1,474 @@
+package rikka.shizuku.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generate proxies for interfaces annotated with <code>rikka.shizuku.annotation.ShizukuSystemService</code>.
+ */
+@SupportedAnnotationTypes(SystemServiceProcessor.SYSTEM_SERVICE)
+public class SystemServiceProcessor extends AbstractProcessor {
+
+    static final String SYSTEM_SERVICE = "rikka.shizuku.annotation.ShizukuSystemService";
+    static final String TRANSACTION = "rikka.shizuku.annotation.ShizukuTransaction";
+
+    private static final String PROXY_SUFFIX = "ShizukuProxy";
+
+    private static class ProcessingException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        final transient Element element;
+
+        ProcessingException(Element element, String message) {
+            super(message);
+            this.element = element;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(SYSTEM_SERVICE);
+        if (annotation == null) {
+            return false;
+        }
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            try {
+                if (element.getKind() != ElementKind.INTERFACE) {
+                    throw new ProcessingException(element, "@ShizukuSystemService can only be used on interfaces");
+                }
+                generate((TypeElement) element);
+            } catch (ProcessingException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), e.element);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write proxy: " + e.getMessage(), element);
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement type) throws ProcessingException, IOException {
+        String serviceName = (String) getAnnotationValue(type, SYSTEM_SERVICE, "name");
+        String descriptor = (String) getAnnotationValue(type, SYSTEM_SERVICE, "descriptor");
+        String stubClass = (String) getAnnotationValue(type, SYSTEM_SERVICE, "stubClass");
+        if (stubClass == null || stubClass.isEmpty()) {
+            stubClass = descriptor + "$Stub";
+        }
+
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = packageElement.isUnnamed() ? null : packageElement.getQualifiedName().toString();
+        String className = type.getSimpleName() + PROXY_SUFFIX;
+
+        StringBuilder fields = new StringBuilder();
+        StringBuilder methods = new StringBuilder();
+        Set<String> codeNames = new HashSet<>();
+        // Transaction name -> method, for methods whose code is read from the Stub class
+        Map<String, ExecutableElement> lookupNames = new HashMap<>();
+
+        for (ExecutableElement method : getAbstractMethods(type)) {
+            if (!method.getTypeParameters().isEmpty()) {
+                throw new ProcessingException(method, "Generic methods are not supported");
+            }
+            if (!((TypeElement) method.getEnclosingElement()).getTypeParameters().isEmpty()) {
+                throw new ProcessingException(method, "Methods of generic interfaces are not supported");
+            }
+
+            String methodName = method.getSimpleName().toString();
+            String transactionName = (String) getAnnotationValue(method, TRANSACTION, "name");
+            Integer transactionCode = (Integer) getAnnotationValue(method, TRANSACTION, "code");
+            Boolean oneway = (Boolean) getAnnotationValue(method, TRANSACTION, "oneway");
+            if (transactionName == null || transactionName.isEmpty()) {
+                transactionName = methodName;
+            }
+            if (oneway == null) {
+                oneway = false;
+            }
+            if (oneway && method.getReturnType().getKind() != TypeKind.VOID) {
+                throw new ProcessingException(method, "Oneway methods must return void");
+            }
+
+            String codeName = "TRANSACTION_" + methodName;
+            for (int i = 1; !codeNames.add(codeName); i++) {
+                codeName = "TRANSACTION_" + methodName + "_" + i;
+            }
+
+            boolean hasCode = transactionCode != null && transactionCode >= 0;
+            if (!hasCode) {
+                // Overloads share the same name in the Stub class, so they would be sent with the same code
+                ExecutableElement previous = lookupNames.put(transactionName, method);
+                if (previous != null) {
+                    throw new ProcessingException(method, "Method " + methodName + " has the same transaction name \""
+                            + transactionName + "\" as " + previous + ", set name or code of @ShizukuTransaction to tell them apart");
+                }
+            }
+
+            if (hasCode) {
+                fields.append("    private static final Integer ").append(codeName).append(" = ").append(transactionCode).append(";\n");
+            } else {
+                fields.append("    private static final Integer ").append(codeName)
+                        .append(" = SystemServiceHelper.getTransactionCode(STUB_CLASS, \"").append(transactionName).append("\");\n");
+            }
+
+            writeMethod(methods, method, codeName, transactionName, oneway);
+        }
+
+        String qualifiedName = packageName != null ? packageName + "." + className : className;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+        try (Writer writer = file.openWriter()) {
+            if (packageName != null) {
+                writer.write("package " + packageName + ";\n\n");
+            }
+            writer.write("import android.os.IBinder;\n"
+                    + "import android.os.Parcel;\n"
+                    + "\n"
+                    + "import java.util.Objects;\n"
+                    + "\n"
+                    + "import rikka.shizuku.Shizuku;\n"
+                    + "import rikka.shizuku.ShizukuApiConstants;\n"
+                    + "import rikka.shizuku.ShizukuParcelPool;\n"
+                    + "import rikka.shizuku.SystemServiceHelper;\n"
+                    + "\n"
+                    + "/**\n"
+                    + " * Generated by " + SystemServiceProcessor.class.getName() + " from {@link " + type.getQualifiedName() + "}.\n"
+                    + " */\n"
+                    + "public final class " + className + " implements " + type.getQualifiedName() + " {\n"
+                    + "\n"
+                    + "    private static final String SERVICE_NAME = \"" + serviceName + "\";\n"
+                    + "    private static final String DESCRIPTOR = \"" + descriptor + "\";\n"
+                    + "    private static final String STUB_CLASS = \"" + stubClass + "\";\n"
+                    + "\n");
+            writer.write(fields.toString());
+            writer.write("\n"
+                    + "    private static IBinder requireBinder() {\n"
+                    + "        return Objects.requireNonNull(SystemServiceHelper.getSystemService(SERVICE_NAME), \"can't find system service \" + SERVICE_NAME);\n"
+                    + "    }\n"
+                    + "\n"
+                    + "    private static int requireCode(Integer code, String methodName) {\n"
+                    + "        return Objects.requireNonNull(code, \"can't find transaction code of \" + methodName + \" in \" + STUB_CLASS);\n"
+                    + "    }\n");
+            writer.write(methods.toString());
+            writer.write("}\n");
+        }
+    }
+
+    /**
+     * Returns abstract methods of the interface, including inherited ones, methods of Object are excluded.
+     */
+    private List<ExecutableElement> getAbstractMethods(TypeElement type) {
+        Elements elements = processingEnv.getElementUtils();
+        List<ExecutableElement> candidates = new ArrayList<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+            if (method.getModifiers().contains(Modifier.STATIC) || method.getModifiers().contains(Modifier.DEFAULT)
+                    || !method.getModifiers().contains(Modifier.ABSTRACT)) {
+                continue;
+            }
+            if (((TypeElement) method.getEnclosingElement()).getQualifiedName().contentEquals("java.lang.Object")) {
+                continue;
+            }
+            candidates.add(method);
+        }
+
+        // A method redeclared in a sub-interface only needs to be implemented once
+        List<ExecutableElement> result = new ArrayList<>();
+        for (ExecutableElement method : candidates) {
+            boolean overridden = false;
+            for (ExecutableElement other : candidates) {
+                if (other != method && elements.overrides(other, method, type)) {
+                    overridden = true;
+                    break;
+                }
+            }
+            if (!overridden) {
+                result.add(method);
+            }
+        }
+        return result;
+    }
+
+    private void writeMethod(StringBuilder out, ExecutableElement method, String codeName, String transactionName, boolean oneway) throws ProcessingException {
+        TypeMirror returnType = method.getReturnType();
+        List<? extends VariableElement> parameters = method.getParameters();
+
+        out.append("\n    @Override\n    public ").append(returnType).append(' ').append(method.getSimpleName()).append('(');
+        for (int i = 0; i < parameters.size(); i++) {
+            if (i > 0) out.append(", ");
+            out.append(parameters.get(i).asType()).append(' ').append(parameters.get(i).getSimpleName());
+        }
+        out.append(") {\n");
+
+        // Parcelables of the app read and write the parcels directly, so such parcels are not taken from the pool
+        String pool = hasParcelable(method) ? "Parcel" : "ShizukuParcelPool";
+
+        out.append("        int _code = requireCode(").append(codeName).append(", \"").append(transactionName).append("\");\n");
+        out.append("        Parcel _data = ").append(pool).append(".obtain();\n");
+        if (!oneway) {
+            out.append("        Parcel _reply = ").append(pool).append(".obtain();\n");
+        }
+        out.append("        try {\n");
+        out.append("            _data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR);\n");
+        out.append("            _data.writeStrongBinder(requireBinder());\n");
+        out.append("            _data.writeInt(_code);\n");
+        out.append("            _data.writeInterfaceToken(DESCRIPTOR);\n");
+        for (VariableElement parameter : parameters) {
+            writeValue(out, parameter, parameter.asType(), parameter.getSimpleName().toString());
+        }
+        if (oneway) {
+            out.append("            Shizuku.transactRemote(_data, null, IBinder.FLAG_ONEWAY, DESCRIPTOR, _code);\n");
+        } else {
+            out.append("            Shizuku.transactRemote(_data, _reply, 0, DESCRIPTOR, _code);\n");
+            out.append("            _reply.readException();\n");
+            if (returnType.getKind() != TypeKind.VOID) {
+                out.append("            return ").append(readValue(method, returnType)).append(";\n");
+            }
+        }
+        out.append("        } finally {\n");
+        out.append("            ").append(recycle(pool, "_data")).append(";\n");
+        if (!oneway) {
+            out.append("            ").append(recycle(pool, "_reply")).append(";\n");
+        }
+        out.append("        }\n");
+        out.append("    }\n");
+    }
+
+    private static String recycle(String pool, String name) {
+        return "Parcel".equals(pool) ? name + ".recycle()" : pool + ".recycle(" + name + ")";
+    }
+
+    private boolean hasParcelable(ExecutableElement method) {
+        if (hasParcelable(method.getReturnType())) {
+            return true;
+        }
+        for (VariableElement parameter : method.getParameters()) {
+            if (hasParcelable(parameter.asType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasParcelable(TypeMirror type) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            return hasParcelable(((ArrayType) type).getComponentType());
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        if (isSubtype(type, "android.os.Parcelable")) {
+            return true;
+        }
+        for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+            if (hasParcelable(argument)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeValue(StringBuilder out, Element element, TypeMirror type, String name) throws ProcessingException {
+        String indent = "            ";
+        switch (type.getKind()) {
+            case BOOLEAN:
+                out.append(indent).append("_data.writeInt(").append(name).append(" ? 1 : 0);\n");
+                return;
+            case BYTE:
+                out.append(indent).append("_data.writeByte(").append(name).append(");\n");
+                return;
+            case CHAR:
+            case SHORT:
+            case INT:
+                out.append(indent).append("_data.writeInt(").append(name).append(");\n");
+                return;
+            case LONG:
+                out.append(indent).append("_data.writeLong(").append(name).append(");\n");
+                return;
+            case FLOAT:
+                out.append(indent).append("_data.writeFloat(").append(name).append(");\n");
+                return;
+            case DOUBLE:
+                out.append(indent).append("_data.writeDouble(").append(name).append(");\n");
+                return;
+            case ARRAY:
+                out.append(indent).append("_data.write").append(arrayMethodSuffix(element, (ArrayType) type)).append("(").append(name).append(");\n");
+                return;
+            case DECLARED:
+                if (isType(type, "java.lang.String")) {
+                    out.append(indent).append("_data.writeString(").append(name).append(");\n");
+                } else if (isSubtype(type, "android.os.IBinder")) {
+                    out.append(indent).append("_data.writeStrongBinder(").append(name).append(");\n");
+                } else if (isSubtype(type, "android.os.IInterface")) {
+                    out.append(indent).append("_data.writeStrongBinder(").append(name).append(" != null ? ").append(name).append(".asBinder() : null);\n");
+                } else if (isSubtype(type, "android.os.Parcelable")) {
+                    out.append(indent).append("if (").append(name).append(" != null) {\n")
+                            .append(indent).append("    _data.writeInt(1);\n")
+                            .append(indent).append("    ").append(name).append(".writeToParcel(_data, 0);\n")
+                            .append(indent).append("} else {\n")
+                            .append(indent).append("    _data.writeInt(0);\n")
+                            .append(indent).append("}\n");
+                } else if (isType(type, "java.util.List")) {
+                    TypeMirror elementType = listElementType(element, type);
+                    if (isType(elementType, "java.lang.String")) {
+                        out.append(indent).append("_data.writeStringList(").append(name).append(");\n");
+                    } else {
+                        out.append(indent).append("_data.writeTypedList(").append(name).append(");\n");
+                    }
+                } else {
+                    throw unsupported(element, type);
+                }
+                return;
+            default:
+                throw unsupported(element, type);
+        }
+    }
+
+    private String readValue(Element element, TypeMirror type) throws ProcessingException {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "_reply.readInt() != 0";
+            case BYTE:
+                return "_reply.readByte()";
+            case CHAR:
+                return "(char) _reply.readInt()";
+            case SHORT:
+                return "(short) _reply.readInt()";
+            case INT:
+                return "_reply.readInt()";
+            case LONG:
+                return "_reply.readLong()";
+            case FLOAT:
+                return "_reply.readFloat()";
+            case DOUBLE:
+                return "_reply.readDouble()";
+            case ARRAY:
+                return "_reply.create" + arrayMethodSuffix(element, (ArrayType) type) + "()";
+            case DECLARED:
+                String rawType = rawTypeName(type);
+                if (isType(type, "java.lang.String")) {
+                    return "_reply.readString()";
+                } else if (isType(type, "android.os.IBinder")) {
+                    return "_reply.readStrongBinder()";
+                } else if (isSubtype(type, "android.os.IInterface")) {
+                    return rawType + ".Stub.asInterface(_reply.readStrongBinder())";
+                } else if (isSubtype(type, "android.os.Parcelable")) {
+                    return "_reply.readInt() != 0 ? " + rawType + ".CREATOR.createFromParcel(_reply) : null";
+                } else if (isType(type, "java.util.List")) {
+                    TypeMirror elementType = listElementType(element, type);
+                    if (isType(elementType, "java.lang.String")) {
+                        return "_reply.createStringArrayList()";
+                    }
+                    return "_reply.createTypedArrayList(" + rawTypeName(elementType) + ".CREATOR)";
+                }
+                throw unsupported(element, type);
+            default:
+                throw unsupported(element, type);
+        }
+    }
+
+    private String arrayMethodSuffix(Element element, ArrayType type) throws ProcessingException {
+        TypeMirror component = type.getComponentType();
+        switch (component.getKind()) {
+            case BOOLEAN:
+                return "BooleanArray";
+            case BYTE:
+                return "ByteArray";
+            case CHAR:
+                return "CharArray";
+            case INT:
+                return "IntArray";
+            case LONG:
+                return "LongArray";
+            case FLOAT:
+                return "FloatArray";
+            case DOUBLE:
+                return "DoubleArray";
+            case DECLARED:
+                if (isType(component, "java.lang.String")) {
+                    return "StringArray";
+                }
+                throw unsupported(element, type);
+            default:
+                throw unsupported(element, type);
+        }
+    }
+
+    private TypeMirror listElementType(Element element, TypeMirror type) throws ProcessingException {
+        List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+        if (arguments.size() != 1) {
+            throw unsupported(element, type);
+        }
+        TypeMirror elementType = arguments.get(0);
+        if (!isType(elementType, "java.lang.String") && !isSubtype(elementType, "android.os.Parcelable")) {
+            throw unsupported(element, type);
+        }
+        return elementType;
+    }
+
+    private boolean isType(TypeMirror type, String className) {
+        return type.getKind() == TypeKind.DECLARED && rawTypeName(type).equals(className);
+    }
+
+    private boolean isSubtype(TypeMirror type, String className) {
+        TypeElement element = processingEnv.getElementUtils().getTypeElement(className);
+        if (element == null) {
+            return false;
+        }
+        return processingEnv.getTypeUtils().isAssignable(
+                processingEnv.getTypeUtils().erasure(type),
+                processingEnv.getTypeUtils().erasure(element.asType()));
+    }
+
+    private String rawTypeName(TypeMirror type) {
+        return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+    }
+
+    private static ProcessingException unsupported(Element element, TypeMirror type) {
+        return new ProcessingException(element, "Unsupported type " + type);
+    }
+
+    private static Object getAnnotationValue(Element element, String annotationName, String key) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (!((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationName)) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals(key)) {
+                    return entry.getValue().getValue();
+                }
+            }
+        }
+        return null;
+    }
+}
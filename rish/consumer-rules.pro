@@ -0,0 +1,3 @@
+-keepclassmembers class rikka.rish.RishHost {
+    private void onExit(int);
+}
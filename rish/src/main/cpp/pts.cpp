@@ -6,7 +6,9 @@
 #include <android/log.h>
 #include <pthread.h>
 #include <sys/sendfile.h>
+#include <sys/stat.h>
 #include <functional>
+#include <zlib.h>
 #include "logging.h"
 
 int make_tty_raw(int fd, termios &old_termios) {
@@ -56,10 +58,37 @@ struct transfer_thread_data {
     int out;
     bool close_in;
     bool close_out;
+    bool inflate;
     std::function<void()> function;
 };
 
-void transfer(int in, int out, bool close_in, bool close_out, const std::function<void()> &function) {
+static bool is_pipe(int fd) {
+    struct stat st{};
+    return fstat(fd, &st) == 0 && S_ISFIFO(st.st_mode);
+}
+
+#define SPLICE_SIZE (64 * 1024)
+
+/*
+ * Move data with splice, so that it does not go through user space.
+ * Returns false if splice is not supported by the fds (e.g., ptmx on old kernels), nothing is transferred in this case.
+ */
+static bool transfer_splice(int in, int out) {
+    bool transferred = false;
+    while (true) {
+        ssize_t len = TEMP_FAILURE_RETRY(splice(in, nullptr, out, nullptr, SPLICE_SIZE, SPLICE_F_MOVE | SPLICE_F_MORE));
+        if (len > 0) {
+            transferred = true;
+            continue;
+        }
+        if (len == -1 && !transferred && (errno == EINVAL || errno == ENOSYS)) {
+            return false;
+        }
+        return true;
+    }
+}
+
+static void transfer_buffer(int in, int out) {
     char buf[8192];
     int len;
     while ((len = TEMP_FAILURE_RETRY(read(in, buf, 8192))) > 0) {
@@ -69,22 +98,78 @@ void transfer(int in, int out, bool close_in, bool close_out, const std::functio
         }
     }
     //PLOGE("read");
+}
+
+void transfer(int in, int out, bool close_in, bool close_out, const std::function<void()> &function) {
+    // splice requires one of the fds to be a pipe
+    if (!(is_pipe(in) || is_pipe(out)) || !transfer_splice(in, out)) {
+        transfer_buffer(in, out);
+    }
 
     if (close_in) close(in);
     if (close_out) close(out);
     if (function) function();
 }
 
+/*
+ * Decompress the zlib stream written by relay_add with compress.
+ */
+static void transfer_inflate(int in, int out) {
+    z_stream stream{};
+    if (inflateInit(&stream) != Z_OK) {
+        LOGE("inflateInit failed");
+        return;
+    }
+
+    char in_buf[8192];
+    char out_buf[32768];
+    int len;
+    int ret = Z_OK;
+    while (ret != Z_STREAM_END && (len = TEMP_FAILURE_RETRY(read(in, in_buf, sizeof(in_buf)))) > 0) {
+        stream.next_in = (Bytef *) in_buf;
+        stream.avail_in = len;
+        do {
+            stream.next_out = (Bytef *) out_buf;
+            stream.avail_out = sizeof(out_buf);
+            ret = inflate(&stream, Z_NO_FLUSH);
+            if (ret != Z_OK && ret != Z_STREAM_END && ret != Z_BUF_ERROR) {
+                LOGE("inflate: %d", ret);
+                inflateEnd(&stream);
+                return;
+            }
+            size_t size = sizeof(out_buf) - stream.avail_out;
+            if (size > 0 && write_full(out, out_buf, size) == -1) {
+                inflateEnd(&stream);
+                return;
+            }
+        } while (stream.avail_out == 0 && ret != Z_STREAM_END);
+    }
+    inflateEnd(&stream);
+}
+
 static void *transfer_thread(void *_data) {
     auto data = (transfer_thread_data *) _data;
-    transfer(data->in, data->out, data->close_in, data->close_out, data->function);
+    if (data->inflate) {
+        transfer_inflate(data->in, data->out);
+        if (data->close_in) close(data->in);
+        if (data->close_out) close(data->out);
+        if (data->function) data->function();
+    } else {
+        transfer(data->in, data->out, data->close_in, data->close_out, data->function);
+    }
     delete data;
     return nullptr;
 }
 
 void transfer_async(int in, int out, const std::function<void()> &function, bool close_in, bool close_out) {
     pthread_t pthread;
-    auto *data = new transfer_thread_data{in, out, close_in, close_out, function};
+    auto *data = new transfer_thread_data{in, out, close_in, close_out, false, function};
+    pthread_create(&pthread, nullptr, transfer_thread, data);
+}
+
+void transfer_inflate_async(int in, int out, const std::function<void()> &function, bool close_in, bool close_out) {
+    pthread_t pthread;
+    auto *data = new transfer_thread_data{in, out, close_in, close_out, true, function};
     pthread_create(&pthread, nullptr, transfer_thread, data);
 }
 
@@ -14,6 +14,11 @@ int restore_fd(int fd, const termios &old_termios);
 
 void transfer_async(int in, int out, const std::function<void()> &function = nullptr, bool close_in = true, bool close_out = true);
 
+/*
+ * Like transfer_async, but data from in is a zlib stream and is decompressed before writing to out.
+ */
+void transfer_inflate_async(int in, int out, const std::function<void()> &function = nullptr, bool close_in = true, bool close_out = true);
+
 int open_ptmx();
 
 #endif //PTS_H
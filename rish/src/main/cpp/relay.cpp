@@ -0,0 +1,655 @@
+#include <unistd.h>
+#include <fcntl.h>
+#include <termios.h>
+#include <cstdlib>
+#include <pthread.h>
+#include <wait.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <android/api-level.h>
+#include <zlib.h>
+#include <cstring>
+#include <functional>
+#include <map>
+#include <vector>
+#include "logging.h"
+#include "pts.h"
+#include "relay.h"
+
+#ifndef __NR_pidfd_open
+#define __NR_pidfd_open 434
+#endif
+
+#define DEFAULT_BUFFER_SIZE (64 * 1024)
+#define SPLICE_SIZE (64 * 1024)
+#define MAX_EVENTS 32
+
+enum {
+    ENDPOINT_IN,
+    ENDPOINT_OUT,
+    ENDPOINT_PID,
+    ENDPOINT_WAKE,
+};
+
+struct relay_endpoint {
+    int type;
+    void *owner;
+};
+
+// Keeps the latest output of a detachable stream
+struct relay_scrollback {
+    char *data;
+    size_t capacity;
+    size_t head;
+    size_t size;
+};
+
+/*
+ * A stream is either reading (in is polled for EPOLLIN) or writing (out is polled for EPOLLOUT),
+ * so a slow reader of out stops reading from in.
+ */
+struct relay_stream {
+    int in;
+    int out;
+    relay_endpoint in_endpoint;
+    relay_endpoint out_endpoint;
+    std::function<void()> on_close;
+    bool use_splice;
+    bool spliced;
+    bool writing;
+    bool finished;
+    char *buffer;
+    size_t buffer_capacity;
+    size_t start;
+    size_t end;
+    // Only for detachable streams, out is -1 when detached
+    int key;
+    relay_scrollback *scrollback;
+    // Only for compressed streams, compressed data in zbuffer[start, end) is written to out
+    z_stream *deflater;
+    char *zbuffer;
+    bool deflate_more;
+    bool deflate_finishing;
+};
+
+struct relay_pid {
+    int pid;
+    int pidfd;
+    relay_endpoint endpoint;
+    std::function<void(int)> on_exit;
+};
+
+static pthread_once_t init_once = PTHREAD_ONCE_INIT;
+static int epfd = -1;
+static size_t buffer_size = DEFAULT_BUFFER_SIZE;
+
+// Streams finished in the current batch of events, they are freed after the batch
+static std::vector<relay_stream *> finished_streams;
+
+// Detachable streams by key, only accessed in the loop thread
+static std::map<int, relay_stream *> detachable_streams;
+
+// Functions posted from other threads to run in the loop thread
+static int wake_fd = -1;
+static relay_endpoint wake_endpoint{ENDPOINT_WAKE, nullptr};
+static pthread_mutex_t posted_mutex = PTHREAD_MUTEX_INITIALIZER;
+static std::vector<std::function<void()>> posted;
+
+static void scrollback_append(relay_scrollback *sb, const char *buf, size_t len) {
+    if (len >= sb->capacity) {
+        memcpy(sb->data, buf + len - sb->capacity, sb->capacity);
+        sb->head = 0;
+        sb->size = sb->capacity;
+        return;
+    }
+
+    size_t tail = (sb->head + sb->size) % sb->capacity;
+    size_t first = len < sb->capacity - tail ? len : sb->capacity - tail;
+    memcpy(sb->data + tail, buf, first);
+    memcpy(sb->data, buf + first, len - first);
+
+    sb->size += len;
+    if (sb->size > sb->capacity) {
+        sb->head = (sb->head + sb->size - sb->capacity) % sb->capacity;
+        sb->size = sb->capacity;
+    }
+}
+
+static size_t scrollback_copy(relay_scrollback *sb, char *buf) {
+    size_t first = sb->size < sb->capacity - sb->head ? sb->size : sb->capacity - sb->head;
+    memcpy(buf, sb->data + sb->head, first);
+    memcpy(buf + first, sb->data, sb->size - first);
+    return sb->size;
+}
+
+static int epoll_add(int fd, relay_endpoint *endpoint, uint32_t events) {
+    epoll_event event{};
+    event.events = events;
+    event.data.ptr = endpoint;
+    return epoll_ctl(epfd, EPOLL_CTL_ADD, fd, &event);
+}
+
+static void epoll_del(int fd) {
+    epoll_ctl(epfd, EPOLL_CTL_DEL, fd, nullptr);
+}
+
+static void finish(relay_stream *s) {
+    if (s->writing) {
+        epoll_del(s->out);
+    } else {
+        epoll_del(s->in);
+    }
+    close(s->in);
+    if (s->out != -1) close(s->out);
+    s->finished = true;
+    if (s->scrollback) {
+        detachable_streams.erase(s->key);
+    }
+    if (s->on_close) s->on_close();
+    finished_streams.push_back(s);
+}
+
+// The client of a detachable stream is gone, keep reading to scrollback
+static void detach(relay_stream *s) {
+    LOGD("detach %d", s->key);
+
+    if (s->writing) {
+        epoll_del(s->out);
+        epoll_add(s->in, &s->in_endpoint, EPOLLIN);
+        s->writing = false;
+    }
+    close(s->out);
+    s->out = -1;
+    s->start = s->end = 0;
+}
+
+static void fail(relay_stream *s) {
+    if (s->scrollback) {
+        detach(s);
+    } else {
+        finish(s);
+    }
+}
+
+static void wait_output(relay_stream *s) {
+    epoll_del(s->in);
+    epoll_add(s->out, &s->out_endpoint, EPOLLOUT);
+    s->writing = true;
+}
+
+static void resume_input(relay_stream *s) {
+    epoll_del(s->out);
+    epoll_add(s->in, &s->in_endpoint, EPOLLIN);
+    s->writing = false;
+}
+
+// Returns false if out is blocked or the stream is finished
+static bool flush(relay_stream *s) {
+    const char *data = s->deflater ? s->zbuffer : s->buffer;
+    while (s->start < s->end) {
+        ssize_t size = write(s->out, data + s->start, s->end - s->start);
+        if (size > 0) {
+            s->start += size;
+        } else if (size == -1 && errno == EINTR) {
+            continue;
+        } else if (size == -1 && errno == EAGAIN) {
+            if (!s->writing) wait_output(s);
+            return false;
+        } else {
+            fail(s);
+            return false;
+        }
+    }
+    return true;
+}
+
+/*
+ * Compress pending input in the buffer and write it out, each read is flushed with Z_SYNC_FLUSH so that the client
+ * can decompress it immediately. Returns false if out is blocked or the stream is finished.
+ */
+static bool pump(relay_stream *s) {
+    while (true) {
+        if (s->start < s->end && !flush(s)) {
+            return false;
+        }
+        if (s->deflater->avail_in == 0 && !s->deflate_more) {
+            return true;
+        }
+
+        s->deflater->next_out = (Bytef *) s->zbuffer;
+        s->deflater->avail_out = s->buffer_capacity;
+        deflate(s->deflater, s->deflate_finishing ? Z_FINISH : Z_SYNC_FLUSH);
+
+        // Output buffer is full, there may be more output
+        s->deflate_more = s->deflater->avail_out == 0;
+        s->start = 0;
+        s->end = s->buffer_capacity - s->deflater->avail_out;
+    }
+}
+
+static void on_input(relay_stream *s) {
+    if (s->use_splice) {
+        ssize_t size = splice(s->in, nullptr, s->out, nullptr, SPLICE_SIZE, SPLICE_F_MOVE | SPLICE_F_NONBLOCK | SPLICE_F_MORE);
+        if (size > 0) {
+            s->spliced = true;
+            return;
+        }
+        if (size == 0) {
+            finish(s);
+            return;
+        }
+        if (errno == EINTR) {
+            return;
+        }
+        if (errno == EAGAIN) {
+            // in is readable, so out is full
+            wait_output(s);
+            return;
+        }
+        if (s->spliced || (errno != EINVAL && errno != ENOSYS)) {
+            finish(s);
+            return;
+        }
+        // splice is not supported by the fds (e.g., ptmx on old kernels)
+        s->use_splice = false;
+    }
+
+    if (s->buffer == nullptr) {
+        s->buffer = (char *) malloc(buffer_size);
+        if (s->buffer == nullptr) {
+            finish(s);
+            return;
+        }
+        s->buffer_capacity = buffer_size;
+    }
+
+    if (s->deflater && s->zbuffer == nullptr) {
+        // Output larger than zbuffer is written in more rounds, see pump
+        s->zbuffer = (char *) malloc(s->buffer_capacity);
+        if (s->zbuffer == nullptr) {
+            finish(s);
+            return;
+        }
+    }
+
+    ssize_t size = read(s->in, s->buffer, s->buffer_capacity);
+    if (size > 0 && s->deflater) {
+        s->deflater->next_in = (Bytef *) s->buffer;
+        s->deflater->avail_in = size;
+        pump(s);
+    } else if (size > 0) {
+        if (s->scrollback) {
+            scrollback_append(s->scrollback, s->buffer, size);
+            if (s->out == -1) {
+                return;
+            }
+        }
+        s->start = 0;
+        s->end = size;
+        flush(s);
+    } else if (size == -1 && (errno == EINTR || errno == EAGAIN)) {
+        return;
+    } else if (s->deflater) {
+        // EOF, end the compressed stream before finishing
+        s->deflate_finishing = true;
+        s->deflate_more = true;
+        if (pump(s)) {
+            finish(s);
+        }
+    } else {
+        // EOF, or EIO from ptmx when pts is closed
+        finish(s);
+    }
+}
+
+static void on_output(relay_stream *s, uint32_t events) {
+    if (events & EPOLLERR) {
+        fail(s);
+        return;
+    }
+    if (s->deflater) {
+        if (!pump(s)) {
+            return;
+        }
+        if (s->deflate_finishing) {
+            finish(s);
+        } else {
+            resume_input(s);
+        }
+        return;
+    }
+    if (s->use_splice || flush(s)) {
+        resume_input(s);
+    }
+}
+
+static void on_pid_exit(relay_pid *p) {
+    int status;
+    int code = 0;
+    int w = TEMP_FAILURE_RETRY(waitpid(p->pid, &status, WNOHANG));
+    if (w == 0) {
+        // Spurious wakeup, the process is not exited yet
+        return;
+    }
+    if (w == -1) {
+        if (errno != ECHILD) {
+            PLOGE("waitpid");
+            code = -1;
+        }
+    } else if (WIFEXITED(status)) {
+        LOGD("exited with %d", WEXITSTATUS(status));
+        code = WEXITSTATUS(status);
+    } else if (WIFSIGNALED(status)) {
+        LOGD("killed by signal %d", WTERMSIG(status));
+    }
+
+    epoll_del(p->pidfd);
+    close(p->pidfd);
+    p->on_exit(code);
+    delete p;
+}
+
+static void run_posted() {
+    uint64_t value;
+    TEMP_FAILURE_RETRY(read(wake_fd, &value, sizeof(value)));
+
+    std::vector<std::function<void()>> functions;
+    pthread_mutex_lock(&posted_mutex);
+    functions.swap(posted);
+    pthread_mutex_unlock(&posted_mutex);
+
+    for (auto &function : functions) {
+        function();
+    }
+}
+
+static void post(const std::function<void()> &function) {
+    pthread_mutex_lock(&posted_mutex);
+    posted.push_back(function);
+    pthread_mutex_unlock(&posted_mutex);
+
+    uint64_t value = 1;
+    TEMP_FAILURE_RETRY(write(wake_fd, &value, sizeof(value)));
+}
+
+static void *relay_loop(void *) {
+    epoll_event events[MAX_EVENTS];
+    while (true) {
+        int count = TEMP_FAILURE_RETRY(epoll_wait(epfd, events, MAX_EVENTS, -1));
+        if (count == -1) {
+            PLOGE("epoll_wait");
+            return nullptr;
+        }
+
+        for (int i = 0; i < count; i++) {
+            auto endpoint = (relay_endpoint *) events[i].data.ptr;
+            if (endpoint->type == ENDPOINT_WAKE) {
+                run_posted();
+                continue;
+            }
+            if (endpoint->type == ENDPOINT_PID) {
+                on_pid_exit((relay_pid *) endpoint->owner);
+                continue;
+            }
+
+            auto s = (relay_stream *) endpoint->owner;
+            if (s->finished) {
+                continue;
+            }
+            if (endpoint->type == ENDPOINT_IN) {
+                if (!s->writing) on_input(s);
+            } else {
+                if (s->writing) on_output(s, events[i].events);
+            }
+        }
+
+        for (auto s : finished_streams) {
+            if (s->scrollback) {
+                free(s->scrollback->data);
+                delete s->scrollback;
+            }
+            if (s->deflater) {
+                deflateEnd(s->deflater);
+                delete s->deflater;
+                free(s->zbuffer);
+            }
+            free(s->buffer);
+            delete s;
+        }
+        finished_streams.clear();
+    }
+}
+
+static void relay_init() {
+    epfd = epoll_create1(EPOLL_CLOEXEC);
+    if (epfd == -1) {
+        PLOGE("epoll_create1");
+        return;
+    }
+
+    wake_fd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+    if (wake_fd == -1 || epoll_add(wake_fd, &wake_endpoint, EPOLLIN) == -1) {
+        PLOGE("eventfd");
+        if (wake_fd != -1) close(wake_fd);
+        close(epfd);
+        epfd = -1;
+        return;
+    }
+
+    pthread_t thread;
+    if (pthread_create(&thread, nullptr, relay_loop, nullptr) != 0) {
+        PLOGE("pthread_create");
+        close(wake_fd);
+        close(epfd);
+        epfd = -1;
+        return;
+    }
+    pthread_detach(thread);
+}
+
+static bool can_poll(int fd) {
+    int test = epoll_create1(EPOLL_CLOEXEC);
+    if (test == -1) {
+        return false;
+    }
+    epoll_event event{};
+    bool result = epoll_ctl(test, EPOLL_CTL_ADD, fd, &event) == 0;
+    close(test);
+    return result;
+}
+
+static bool is_pipe(int fd) {
+    struct stat st{};
+    return fstat(fd, &st) == 0 && S_ISFIFO(st.st_mode);
+}
+
+static void set_nonblock(int fd) {
+    int flags = fcntl(fd, F_GETFL);
+    if (flags != -1) {
+        fcntl(fd, F_SETFL, flags | O_NONBLOCK);
+    }
+}
+
+void relay_set_buffer_size(size_t size) {
+    if (size > 0) {
+        buffer_size = size;
+    }
+}
+
+bool relay_add(int in, int out, const std::function<void()> &on_close, bool compress) {
+    pthread_once(&init_once, relay_init);
+    if (epfd == -1 || !can_poll(in) || !can_poll(out)) {
+        return false;
+    }
+
+    set_nonblock(in);
+    set_nonblock(out);
+
+    auto s = new relay_stream{};
+    s->in = in;
+    s->out = out;
+    s->in_endpoint = {ENDPOINT_IN, s};
+    s->out_endpoint = {ENDPOINT_OUT, s};
+    s->on_close = on_close;
+    // splice requires one of the fds to be a pipe
+    s->use_splice = !compress && (is_pipe(in) || is_pipe(out));
+
+    if (compress) {
+        s->deflater = new z_stream{};
+        if (deflateInit(s->deflater, Z_BEST_SPEED) != Z_OK) {
+            LOGE("deflateInit failed");
+            delete s->deflater;
+            delete s;
+            return false;
+        }
+    }
+
+    if (epoll_add(in, &s->in_endpoint, EPOLLIN) == -1) {
+        PLOGE("epoll_ctl");
+        if (s->deflater) {
+            deflateEnd(s->deflater);
+            delete s->deflater;
+        }
+        delete s;
+        return false;
+    }
+    return true;
+}
+
+bool relay_watch_exit(int pid, const std::function<void(int)> &on_exit) {
+    // pidfd_open is added in Linux 5.3, and it may be blocked by seccomp before Android 12
+    if (android_get_device_api_level() < 31) {
+        return false;
+    }
+
+    pthread_once(&init_once, relay_init);
+    if (epfd == -1) {
+        return false;
+    }
+
+    int pidfd = (int) syscall(__NR_pidfd_open, pid, 0);
+    if (pidfd == -1) {
+        PLOGE("pidfd_open");
+        return false;
+    }
+
+    auto p = new relay_pid{};
+    p->pid = pid;
+    p->pidfd = pidfd;
+    p->endpoint = {ENDPOINT_PID, p};
+    p->on_exit = on_exit;
+
+    if (epoll_add(pidfd, &p->endpoint, EPOLLIN) == -1) {
+        PLOGE("epoll_ctl");
+        close(pidfd);
+        delete p;
+        return false;
+    }
+    return true;
+}
+
+bool relay_add_detachable(int in, int out, int key, size_t scrollback_size) {
+    pthread_once(&init_once, relay_init);
+    if (epfd == -1 || !can_poll(in) || !can_poll(out)) {
+        return false;
+    }
+
+    set_nonblock(in);
+    set_nonblock(out);
+
+    // Filled by the loop thread, the caller waits for it so that the fds are kept for a fallback on failure
+    struct {
+        pthread_mutex_t mutex = PTHREAD_MUTEX_INITIALIZER;
+        pthread_cond_t cond = PTHREAD_COND_INITIALIZER;
+        bool done = false;
+        bool added = false;
+    } result;
+
+    // Created in the loop thread, so that a later relay_attach always finds it
+    post([in, out, key, scrollback_size, &result]() {
+        auto sb = new relay_scrollback{};
+        sb->data = (char *) malloc(scrollback_size);
+        sb->capacity = scrollback_size;
+
+        size_t capacity = buffer_size > scrollback_size ? buffer_size : scrollback_size;
+
+        auto s = new relay_stream{};
+        s->in = in;
+        s->out = out;
+        s->in_endpoint = {ENDPOINT_IN, s};
+        s->out_endpoint = {ENDPOINT_OUT, s};
+        s->buffer = (char *) malloc(capacity);
+        s->buffer_capacity = capacity;
+        s->key = key;
+        s->scrollback = sb;
+
+        bool added = sb->data != nullptr && s->buffer != nullptr && epoll_add(in, &s->in_endpoint, EPOLLIN) != -1;
+        if (added) {
+            detachable_streams[key] = s;
+        } else {
+            PLOGE("relay_add_detachable");
+            free(sb->data);
+            delete sb;
+            free(s->buffer);
+            delete s;
+        }
+
+        pthread_mutex_lock(&result.mutex);
+        result.added = added;
+        result.done = true;
+        pthread_cond_signal(&result.cond);
+        pthread_mutex_unlock(&result.mutex);
+    });
+
+    pthread_mutex_lock(&result.mutex);
+    while (!result.done) {
+        pthread_cond_wait(&result.cond, &result.mutex);
+    }
+    bool added = result.added;
+    pthread_mutex_unlock(&result.mutex);
+
+    pthread_mutex_destroy(&result.mutex);
+    pthread_cond_destroy(&result.cond);
+    return added;
+}
+
+void relay_attach(int key, int in, int out) {
+    pthread_once(&init_once, relay_init);
+    if (epfd == -1) {
+        close(in);
+        close(out);
+        return;
+    }
+
+    post([key, in, out]() {
+        auto it = detachable_streams.find(key);
+        if (it == detachable_streams.end()) {
+            // Exited, the client gets EOF and then the exit code
+            LOGD("attach %d: not found", key);
+            close(in);
+            close(out);
+            return;
+        }
+
+        auto s = it->second;
+        LOGD("attach %d", key);
+
+        if (s->out != -1) {
+            detach(s);
+        }
+
+        // Replay scrollback then continue relaying
+        set_nonblock(out);
+        s->out = out;
+        s->start = 0;
+        s->end = scrollback_copy(s->scrollback, s->buffer);
+        flush(s);
+
+        int input = dup(s->in);
+        if (!relay_add(in, input)) {
+            transfer_async(in, input);
+        }
+    });
+}
@@ -0,0 +1,42 @@
+#ifndef RELAY_H
+#define RELAY_H
+
+#include <functional>
+
+/*
+ * A single epoll loop that relays data of all streams and watches child processes,
+ * instead of one thread per stream and per process.
+ */
+
+void relay_set_buffer_size(size_t size);
+
+/*
+ * Relay data from in to out until in reaches EOF or out is closed, then close both fds and call on_close.
+ * If compress is true, data is written to out as a zlib stream, see transfer_inflate_async.
+ * Returns false if the fds can't be polled (e.g., regular files), nothing is changed in this case.
+ */
+bool relay_add(int in, int out, const std::function<void()> &on_close = nullptr, bool compress = false);
+
+/*
+ * Like relay_add, but when out is closed, keep reading in and keep the latest output in a scrollback buffer,
+ * so that a new client can be attached with relay_attach. key identifies the stream.
+ *
+ * Blocks until the stream is added by the relay thread, so it must not be called from it. Returns false if the
+ * stream can't be added, in and out are not closed in this case.
+ */
+bool relay_add_detachable(int in, int out, int key, size_t scrollback_size);
+
+/*
+ * Attach a new client to a detachable stream: scrollback is written to out, then output of the stream continues
+ * to go to out, and in is relayed to a dup of the stream's input fd. The previous client is detached.
+ * fds are closed if the stream is finished.
+ */
+void relay_attach(int key, int in, int out);
+
+/*
+ * Call on_exit with the exit code when the child process exits, the process is reaped.
+ * Returns false if pidfd is not supported.
+ */
+bool relay_watch_exit(int pid, const std::function<void(int)> &on_exit);
+
+#endif //RELAY_H
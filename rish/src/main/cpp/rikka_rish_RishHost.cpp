@@ -8,6 +8,12 @@
 #include <pthread.h>
 #include "logging.h"
 #include "pts.h"
+#include "relay.h"
+
+#define SCROLLBACK_SIZE (64 * 1024)
+
+static JavaVM *jvm;
+static jmethodID method_onExit;
 
 static int setWindowSize(int ptmx, jlong size) {
     static_assert(sizeof(jlong) == sizeof(winsize));
@@ -22,6 +28,20 @@ static int setWindowSize(int ptmx, jlong size) {
     return 0;
 }
 
+static void relay(int in, int out, const std::function<void()> &on_close = nullptr, bool compress = false) {
+    if (!relay_add(in, out, on_close, compress)) {
+        // The client expects a zlib stream, fds that can't be polled are not supported
+        if (compress) {
+            LOGE("unable to relay compressed stream");
+            close(in);
+            close(out);
+            if (on_close) on_close();
+            return;
+        }
+        transfer_async(in, out, on_close);
+    }
+}
+
 // libcore/ojluni/src/main/native/UNIXProcess_md.c
 
 static void *xmalloc(JNIEnv *env, size_t size) {
@@ -61,7 +81,8 @@ static jintArray RishHost_startHost(
         jbyteArray envBlock, jint envc,
         jbyteArray dirBlock,
         jbyte tty,
-        jint stdin_read, jint stdout_write, jint stderr_write) {
+        jint stdin_read, jint stdout_write, jint stderr_write,
+        jint detach_key, jboolean compress) {
 
     bool in_tty = tty & ATTY_IN;
     bool out_tty = tty & ATTY_OUT;
@@ -139,28 +160,36 @@ static jintArray RishHost_startHost(
             kill(pid, SIGKILL);
         };
 
+        // The relay closes ptmx when the stream finishes, the host keeps its own fd for window size changes,
+        // so that a late resize never reaches a reused fd
+        int host_ptmx = ptmx != -1 ? fcntl(ptmx, F_DUPFD_CLOEXEC, 0) : -1;
+
         if (in_tty) {
-            transfer_async(stdin_read, ptmx/*, func*/);
+            // Each stream closes its own fds, so stdin gets a dup of ptmx if stdout also uses it
+            relay(stdin_read, out_tty ? dup(ptmx) : ptmx/*, func*/);
         } else {
-            transfer_async(stdin_read, stdin_pipe[1]/*, func*/);
+            relay(stdin_read, stdin_pipe[1]/*, func*/);
             close(stdin_pipe[0]);
         }
 
         if (out_tty) {
-            transfer_async(ptmx, stdout_write, func);
+            // Detachable sessions keep running when the client is gone, the client can attach again
+            if (detach_key <= 0 || !relay_add_detachable(ptmx, stdout_write, detach_key, SCROLLBACK_SIZE)) {
+                relay(ptmx, stdout_write, func, compress);
+            }
         } else {
-            transfer_async(stdout_pipe[0], stdout_write, func);
+            relay(stdout_pipe[0], stdout_write, func, compress);
             close(stdout_pipe[1]);
         }
 
         if (!err_tty) {
-            transfer_async(stderr_pipe[0], stderr_write/*, func*/);
+            relay(stderr_pipe[0], stderr_write, nullptr, compress);
             close(stderr_pipe[1]);
         }
 
         auto result = env->NewIntArray(2);
         env->SetIntArrayRegion(result, 0, 1, &pid);
-        env->SetIntArrayRegion(result, 1, 1, &ptmx);
+        env->SetIntArrayRegion(result, 1, 1, &host_ptmx);
         return result;
     } else {
         if (setsid() < 0) {
@@ -278,12 +307,58 @@ static jint RishHost_waitFor(JNIEnv *env, jclass clazz, jint pid) {
     return -1;
 }
 
+static JNIEnv *getJNIEnv() {
+    JNIEnv *env = nullptr;
+    if (jvm->GetEnv((void **) &env, JNI_VERSION_1_6) == JNI_EDETACHED) {
+        // The relay thread lives as long as the process, so it is never detached
+        if (jvm->AttachCurrentThreadAsDaemon(&env, nullptr) != JNI_OK) {
+            LOGE("AttachCurrentThreadAsDaemon failed");
+            return nullptr;
+        }
+    }
+    return env;
+}
+
+static jboolean RishHost_watchExit(JNIEnv *env, jobject thiz, jint pid) {
+    auto host = env->NewGlobalRef(thiz);
+    bool watched = relay_watch_exit(pid, [host](int exit_code) {
+        auto env = getJNIEnv();
+        if (env == nullptr) {
+            return;
+        }
+        env->CallVoidMethod(host, method_onExit, exit_code);
+        if (env->ExceptionCheck()) {
+            env->ExceptionDescribe();
+            env->ExceptionClear();
+        }
+        env->DeleteGlobalRef(host);
+    });
+    if (!watched) {
+        env->DeleteGlobalRef(host);
+    }
+    return watched;
+}
+
+static void RishHost_attach(JNIEnv *env, jclass clazz, jint key, jint stdin_read, jint stdout_write) {
+    relay_attach(key, stdin_read, stdout_write);
+}
+
+static void RishHost_setRelayBufferSize(JNIEnv *env, jclass clazz, jint size) {
+    relay_set_buffer_size(size);
+}
+
 int rikka_rish_RishHost_registerNatives(JNIEnv *env) {
+    env->GetJavaVM(&jvm);
+
     auto clazz = env->FindClass("rikka/rish/RishHost");
+    method_onExit = env->GetMethodID(clazz, "onExit", "(I)V");
     JNINativeMethod methods[] = {
-            {"start",         "([BI[BI[BBIII)[I", (void *) RishHost_startHost},
-            {"setWindowSize", "(IJ)V",            (void *) RishHost_setWindowSize},
-            {"waitFor",       "(I)I",             (void *) RishHost_waitFor},
+            {"start",               "([BI[BI[BBIIIIZ)[I", (void *) RishHost_startHost},
+            {"setWindowSize",       "(IJ)V",              (void *) RishHost_setWindowSize},
+            {"waitFor",             "(I)I",               (void *) RishHost_waitFor},
+            {"watchExit",           "(I)Z",               (void *) RishHost_watchExit},
+            {"attach",              "(III)V",             (void *) RishHost_attach},
+            {"setRelayBufferSize",  "(I)V",               (void *) RishHost_setRelayBufferSize},
     };
     return env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
 }
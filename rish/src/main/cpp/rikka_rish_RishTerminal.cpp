@@ -5,6 +5,9 @@
 #include <cstdlib>
 #include <android/log.h>
 #include <pthread.h>
+#include <poll.h>
+#include <csignal>
+#include <cerrno>
 #include "logging.h"
 #include "pts.h"
 
@@ -12,6 +15,17 @@ static pthread_mutex_t mutex;
 static struct termios old_stdin{};
 static int tty_in_raw = 0;
 
+// Self-pipe written by the SIGWINCH handler, read by waitForWindowSizeChange
+static int winch_pipe[2] = {-1, -1};
+
+static void winch_handler(int) {
+    int saved_errno = errno;
+    // Non-blocking, if the pipe is full there is already a pending event
+    char c = 0;
+    write(winch_pipe[1], &c, 1);
+    errno = saved_errno;
+}
+
 static int64_t getWindowSize(int fd) {
     static_assert(sizeof(jlong) == sizeof(winsize));
     jlong screen_size;
@@ -32,11 +46,23 @@ static jbyte RishTerminal_prepare(JNIEnv *env, jclass clazz) {
 
     LOGD("istty stdin %d stdout %d stderr %d", (atty & ATTY_IN) ? 1 : 0, (atty & ATTY_OUT) ? 1 : 0, (atty & ATTY_ERR) ? 1 : 0);
 
-    if (atty & ATTY_OUT) {
-        sigset_t winch;
-        sigemptyset(&winch);
-        sigaddset(&winch, SIGWINCH);
-        pthread_sigmask(SIG_BLOCK, &winch, nullptr);
+    // Threads of the VM are already running with SIGWINCH unblocked, and the signal can be delivered to any of
+    // them, so it is caught by a handler instead of being blocked and read from one thread
+    if (atty) {
+        if (pipe2(winch_pipe, O_CLOEXEC | O_NONBLOCK) == -1) {
+            PLOGE("pipe2");
+        } else {
+            struct sigaction act{};
+            act.sa_handler = winch_handler;
+            act.sa_flags = SA_RESTART;
+            sigemptyset(&act.sa_mask);
+            if (sigaction(SIGWINCH, &act, nullptr) == -1) {
+                PLOGE("sigaction SIGWINCH");
+                close(winch_pipe[0]);
+                close(winch_pipe[1]);
+                winch_pipe[0] = winch_pipe[1] = -1;
+            }
+        }
     }
 
     return atty;
@@ -44,7 +70,7 @@ static jbyte RishTerminal_prepare(JNIEnv *env, jclass clazz) {
 
 static jint RishTerminal_start(
         JNIEnv *env, jclass clazz, jbyte tty,
-        jint stdin_pipe, jint stdout_pipe, jint stderr_pipe) {
+        jint stdin_pipe, jint stdout_pipe, jint stderr_pipe, jboolean compressed) {
 
     int tty_fd;
     bool in_tty = tty & ATTY_IN;
@@ -90,30 +116,62 @@ static jint RishTerminal_start(
     };
 
     transfer_async(STDIN_FILENO, stdin_pipe/*, func*/);
-    transfer_async(stdout_pipe, STDOUT_FILENO, func);
+    if (compressed) {
+        transfer_inflate_async(stdout_pipe, STDOUT_FILENO, func);
+    } else {
+        transfer_async(stdout_pipe, STDOUT_FILENO, func);
+    }
     if (!err_tty) {
-        transfer_async(stderr_pipe, STDERR_FILENO/*, func*/);
+        if (compressed) {
+            transfer_inflate_async(stderr_pipe, STDERR_FILENO/*, func*/);
+        } else {
+            transfer_async(stderr_pipe, STDERR_FILENO/*, func*/);
+        }
     }
 
     return tty_fd;
 }
 
+// Resize events within this time are coalesced into one
+#define WINDOW_SIZE_COALESCE_MS 50
+
+static bool drainWinchPipe() {
+    char buf[64];
+    while (true) {
+        ssize_t count = read(winch_pipe[0], buf, sizeof(buf));
+        if (count > 0) continue;
+        if (count == -1 && errno == EINTR) continue;
+        if (count == -1 && errno == EAGAIN) return true;
+        PLOGE("read winch pipe");
+        return false;
+    }
+}
+
 static jlong RishTerminal_waitForWindowSizeChange(JNIEnv *env, jclass clazz, jint fd) {
-    sigset_t winch;
-    int sig;
+    // The SIGWINCH handler is installed in prepare
+    if (winch_pipe[0] == -1) {
+        return -1;
+    }
+
+    // The first call returns the initial size
+    static bool first = true;
+    if (first) {
+        first = false;
+        return (jlong) getWindowSize(fd);
+    }
 
-    static bool first = false;
-    if (!first) {
-        first = true;
+    pollfd pfd{winch_pipe[0], POLLIN, 0};
+    if (TEMP_FAILURE_RETRY(poll(&pfd, 1, -1)) == -1) {
+        PLOGE("poll winch pipe");
+        return -1;
+    }
 
-        sigemptyset(&winch);
-        sigaddset(&winch, SIGWINCH);
-        pthread_sigmask(SIG_UNBLOCK, &winch, nullptr);
-    } else {
-        if (sigwait(&winch, &sig) == -1) {
-            PLOGE("sigwait SIGWINCH");
+    // Drain the following events of a burst (e.g., dragging the window border), only the last size matters
+    do {
+        if (!drainWinchPipe()) {
+            return -1;
         }
-    }
+    } while (TEMP_FAILURE_RETRY(poll(&pfd, 1, WINDOW_SIZE_COALESCE_MS)) > 0);
 
     return (jlong) getWindowSize(fd);
 }
@@ -133,10 +191,10 @@ int rikka_rish_RishTerminal_registerNatives(JNIEnv *env) {
 
     auto clazz = env->FindClass("rikka/rish/RishTerminal");
     JNINativeMethod methods[] = {
-            {"prepare",                 "()B",     (void *) RishTerminal_prepare},
-            {"start",                   "(BIII)I", (void *) RishTerminal_start},
-            {"waitForWindowSizeChange", "(I)J",    (void *) RishTerminal_waitForWindowSizeChange},
-            {"waitForProcessExit",      "()V",     (void *) RishTerminal_waitForProcessExit},
+            {"prepare",                 "()B",      (void *) RishTerminal_prepare},
+            {"start",                   "(BIIIZ)I", (void *) RishTerminal_start},
+            {"waitForWindowSizeChange", "(I)J",     (void *) RishTerminal_waitForWindowSizeChange},
+            {"waitForProcessExit",      "()V",      (void *) RishTerminal_waitForProcessExit},
     };
     return env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0]));
 }
@@ -14,6 +14,10 @@ public class RishConfig {
     static final int TRANSACTION_createHost = 0;
     static final int TRANSACTION_setWindowSize = 1;
     static final int TRANSACTION_getExitCode = 2;
+    static final int TRANSACTION_attachHost = 3;
+
+    // Transaction sent from the server to the token binder of the client
+    static final int CALLBACK_TRANSACTION_onExit = IBinder.FIRST_CALL_TRANSACTION;
 
     private static IBinder binder;
     private static String interfaceToken;
@@ -37,6 +41,14 @@ public class RishConfig {
         RishConfig.transactionCodeStart = transactionCodeStart;
     }
 
+    /**
+     * Set buffer size of each stream relayed by the server, only used when the stream can't be spliced.
+     * Call it before any host is created.
+     */
+    public static void setRelayBufferSize(int size) {
+        RishHost.setRelayBufferSize(size);
+    }
+
     public static void init(IBinder binder, String interfaceToken, int transactionCodeStart) {
         Log.d(TAG, "init (client) " + binder + " " + interfaceToken + " " + transactionCodeStart);
         RishConfig.binder = binder;
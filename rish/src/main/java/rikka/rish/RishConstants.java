@@ -5,4 +5,11 @@ class RishConstants {
     public static final int ATTY_IN = (1);
     public static final int ATTY_OUT = (1 << 1);
     public static final int ATTY_ERR = (1 << 2);
+
+    // Flags of createHost
+    public static final int FLAG_COMPRESS = (1);
+    public static final int FLAG_EXIT_CALLBACK = (1 << 1);
+
+    // Flags of attachHost, FLAG_EXIT_CALLBACK is also accepted
+    public static final int FLAG_FORCE_ATTACH = (1 << 2);
 }
@@ -1,8 +1,12 @@
 package rikka.rish;
 
+import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
+
 public class RishHost {
 
     private static final String TAG = "RishHost";
@@ -58,9 +62,19 @@ public class RishHost {
     private final int stdin;
     private final int stdout;
     private final int stderr;
+    private int sessionId;
+    private volatile int callingPid;
+    private int callingUid;
+    private boolean detachable;
+    private boolean compress;
+    private volatile boolean clientAlive = true;
+    private volatile IBinder clientToken;
+    private Runnable onExitListener;
+    private volatile IBinder exitCallback;
     private int pid;
-    private int ptmx;
-    private int exitCode = Integer.MAX_VALUE;
+    // A dup of ptmx owned by the host, guarded by this, -1 after the process exits
+    private int ptmx = -1;
+    private volatile int exitCode = Integer.MAX_VALUE;
 
     public RishHost(
             String[] args, String[] env, String dir,
@@ -77,7 +91,7 @@ public class RishHost {
     }
 
     /**
-     * Fork and execute, start transfer threads.
+     * Fork and execute, add streams to the relay loop.
      */
     public void start() {
         Log.d(TAG, "start");
@@ -91,12 +105,125 @@ public class RishHost {
                 argBlock, args.length,
                 envBlock, env != null ? env.length : -1,
                 dirBlock,
-                tty, stdin, stdout, stderr);
+                tty, stdin, stdout, stderr,
+                detachable ? sessionId : 0,
+                compress);
 
         pid = result[0];
-        ptmx = result[1];
+        synchronized (this) {
+            ptmx = result[1];
+        }
+
+        // Exit is reported by the relay loop with pidfd, fallback to a thread for old kernels
+        if (!watchExit(pid)) {
+            new Thread(() -> onExit(waitFor(pid))).start();
+        }
+    }
+
+    // Called from native
+    private void onExit(int exitCode) {
+        Log.d(TAG, "exit " + exitCode);
+
+        synchronized (this) {
+            this.exitCode = exitCode;
+            closePtmx();
+            notifyAll();
+        }
+        if (onExitListener != null) {
+            onExitListener.run();
+        }
+    }
+
+    void setSession(int sessionId, int callingPid, int callingUid) {
+        this.sessionId = sessionId;
+        this.callingPid = callingPid;
+        this.callingUid = callingUid;
+    }
+
+    /**
+     * Keep the process running when the client is gone, so that a client can attach again with
+     * {@link #attach(ParcelFileDescriptor, ParcelFileDescriptor, int)}. Only works when stdin, stdout and stderr
+     * are all tty. Must be called before {@link #start()}.
+     */
+    void setDetachable(boolean detachable) {
+        this.detachable = detachable && tty == (RishConstants.ATTY_IN | RishConstants.ATTY_OUT | RishConstants.ATTY_ERR);
+    }
+
+    public boolean isDetachable() {
+        return detachable;
+    }
+
+    /**
+     * Compress stdout and stderr with zlib before writing them to the client. Not supported for detachable
+     * sessions, since the scrollback is written to new clients as is. Must be called before {@link #start()}.
+     */
+    void setCompress(boolean compress) {
+        this.compress = compress && !detachable;
+    }
 
-        new Thread(() -> exitCode = waitFor(pid)).start();
+    public boolean isCompress() {
+        return compress;
+    }
+
+    void setOnExitListener(Runnable onExitListener) {
+        this.onExitListener = onExitListener;
+    }
+
+    /**
+     * Replace the client, the scrollback is written to the new stdout first.
+     */
+    void attach(ParcelFileDescriptor stdin, ParcelFileDescriptor stdout, int callingPid) {
+        Log.d(TAG, "attach");
+
+        this.callingPid = callingPid;
+        this.clientAlive = true;
+        attach(sessionId, detachFd(stdin), detachFd(stdout));
+    }
+
+    /**
+     * Set the binder of the client which the exit code is pushed to, null if the client does not support it.
+     */
+    void setExitCallback(IBinder exitCallback) {
+        this.exitCallback = exitCallback;
+    }
+
+    public IBinder getExitCallback() {
+        return exitCallback;
+    }
+
+    /**
+     * Set the binder of the current client, the death of other clients is ignored.
+     */
+    void setClientToken(IBinder clientToken) {
+        this.clientToken = clientToken;
+    }
+
+    public IBinder getClientToken() {
+        return clientToken;
+    }
+
+    void setClientAlive(boolean clientAlive) {
+        this.clientAlive = clientAlive;
+    }
+
+    public boolean isClientAlive() {
+        return clientAlive;
+    }
+
+    public boolean hasExited() {
+        return exitCode != Integer.MAX_VALUE;
+    }
+
+    public int getCallingUid() {
+        return callingUid;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public int getCallingPid() {
+        return callingPid;
     }
 
     public int getPid() {
@@ -107,19 +234,60 @@ public class RishHost {
         return exitCode;
     }
 
-    public void setWindowSize(long size) {
+    /**
+     * Like {@link #getExitCode()}, but wait for the exit for at most timeoutMillis, since the client may ask
+     * for it right after stdout is closed, before the process is reaped.
+     */
+    public synchronized int getExitCode(long timeoutMillis) {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (exitCode == Integer.MAX_VALUE && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            remaining = deadline - SystemClock.uptimeMillis();
+        }
+        return exitCode;
+    }
+
+    public synchronized void setWindowSize(long size) {
         Log.d(TAG, "setWindowSize");
 
+        if (ptmx == -1) {
+            return;
+        }
         setWindowSize(ptmx, size);
     }
 
+    private void closePtmx() {
+        if (ptmx == -1) {
+            return;
+        }
+        try {
+            ParcelFileDescriptor.adoptFd(ptmx).close();
+        } catch (IOException e) {
+            Log.w(TAG, "close ptmx", e);
+        }
+        ptmx = -1;
+    }
+
     private static native int[] start(
             byte[] argBlock, int argc,
             byte[] envBlock, int envc,
             byte[] dirBlock,
-            byte tty, int stdin, int stdout, int stderr);
+            byte tty, int stdin, int stdout, int stderr,
+            int detachKey, boolean compress);
 
     private static native void setWindowSize(int ptmx, long size);
 
     private static native int waitFor(int pid);
+
+    private native boolean watchExit(int pid);
+
+    private static native void attach(int detachKey, int stdin, int stdout);
+
+    static native void setRelayBufferSize(int size);
 }
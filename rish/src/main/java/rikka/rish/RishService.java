@@ -4,27 +4,36 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.system.Os;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class RishService {
 
     private static final String TAG = "RishService";
 
-    private static final Map<Integer, RishHost> HOSTS = new HashMap<>();
+    // Keyed by session id, which is returned to the client by createHost
+    private static final Map<Integer, RishHost> HOSTS = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger NEXT_SESSION_ID = new AtomicInteger(1);
 
     private static final boolean IS_ROOT = Os.getuid() == 0;
 
-    private void createHost(
+    private static final long EXIT_CODE_TIMEOUT_MILLIS = 1000;
+
+    private RishHost createHost(
             String[] args, String[] env, String dir,
             byte tty,
-            ParcelFileDescriptor stdin, ParcelFileDescriptor stdout, ParcelFileDescriptor stderr) {
+            ParcelFileDescriptor stdin, ParcelFileDescriptor stdout, ParcelFileDescriptor stderr,
+            @Nullable IBinder token, int flags) {
 
         int callingPid = Binder.getCallingPid();
 
@@ -35,6 +44,12 @@ public abstract class RishService {
         // Under root, keep env unless RISH_PRESERVE_ENV=0 is set.
 
         boolean allowEnv = IS_ROOT;
+        boolean detachable = false;
+        for (String e : env) {
+            if ("RISH_DETACHABLE=1".equals(e)) {
+                detachable = true;
+            }
+        }
         for (String e : env) {
             if ("RISH_PRESERVE_ENV=1".equals(e)) {
                 allowEnv = true;
@@ -48,35 +63,167 @@ public abstract class RishService {
             env = null;
         }
 
+        int sessionId = NEXT_SESSION_ID.getAndIncrement();
         RishHost host = new RishHost(args, env, dir, tty, stdin, stdout, stderr);
+        host.setSession(sessionId, callingPid, Binder.getCallingUid());
+        host.setDetachable(detachable);
+        host.setCompress((flags & RishConstants.FLAG_COMPRESS) != 0);
+        host.setExitCallback((flags & RishConstants.FLAG_EXIT_CALLBACK) != 0 ? token : null);
+        host.setOnExitListener(() -> {
+            // Nobody will ask for the exit code of a detached session
+            if (!host.isClientAlive()) {
+                HOSTS.remove(sessionId);
+                return;
+            }
+            // The pushed exit code may arrive after the client gives up waiting for it, so the session is kept until
+            // the client asks for the exit code or is dead
+            notifyExit(host);
+        });
+        host.setClientToken(token);
+        HOSTS.put(sessionId, host);
+
+        linkClient(host, token);
+
         host.start();
-        Log.d(TAG, "Forked " + host.getPid());
+        Log.d(TAG, "Forked " + host.getPid() + " for session " + sessionId + (host.isDetachable() ? " (detachable)" : ""));
+        return host;
+    }
+
+    private int attachHost(int sessionId, ParcelFileDescriptor stdin, ParcelFileDescriptor stdout, @Nullable IBinder token, int flags) {
+        RishHost host = HOSTS.get(sessionId);
+        if (host == null || !host.isDetachable() || host.getCallingUid() != Binder.getCallingUid()) {
+            Log.d(TAG, "Not existing detachable session " + sessionId);
+            closeSilently(stdin);
+            closeSilently(stdout);
+            return -1;
+        }
+        // Another process of the same uid must not take over a session which is still in use
+        if (host.isClientAlive() && (flags & RishConstants.FLAG_FORCE_ATTACH) == 0) {
+            Log.d(TAG, "Session " + sessionId + " is attached by a living client");
+            closeSilently(stdin);
+            closeSilently(stdout);
+            return -1;
+        }
+
+        host.setExitCallback((flags & RishConstants.FLAG_EXIT_CALLBACK) != 0 ? token : null);
+        // Set before attach, so that the death of the previous client is ignored from now on
+        host.setClientToken(token);
+        host.attach(stdin, stdout, Binder.getCallingPid());
+        linkClient(host, token);
+        Log.d(TAG, "Attached to session " + sessionId);
+        return sessionId;
+    }
+
+    /**
+     * Push the exit code to the client, returns false if the client does not support it or is dead.
+     */
+    private static boolean notifyExit(RishHost host) {
+        IBinder callback = host.getExitCallback();
+        if (callback == null) {
+            return false;
+        }
+
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(RishConfig.getInterfaceToken());
+            data.writeInt(host.getExitCode());
+            callback.transact(RishConfig.CALLBACK_TRANSACTION_onExit, data, null, IBinder.FLAG_ONEWAY);
+            return true;
+        } catch (RemoteException e) {
+            Log.w(TAG, "notifyExit", e);
+            return false;
+        } finally {
+            data.recycle();
+        }
+    }
+
+    private static void closeSilently(@Nullable ParcelFileDescriptor pfd) {
+        if (pfd == null) {
+            return;
+        }
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close", e);
+        }
+    }
 
-        HOSTS.put(callingPid, host);
+    private static void linkClient(RishHost host, @Nullable IBinder token) {
+        if (token == null) {
+            return;
+        }
+
+        int sessionId = host.getSessionId();
+        IBinder.DeathRecipient recipient = () -> {
+            // A new client has attached to the session, the death of a previous one doesn't matter
+            if (host.getClientToken() != token) {
+                Log.d(TAG, "Previous client of session " + sessionId + " is dead");
+                return;
+            }
+
+            Log.d(TAG, "Client of session " + sessionId + " is dead");
+
+            // Detachable sessions are kept until the process exits, a new client may attach
+            host.setClientAlive(false);
+            if (!host.isDetachable() || host.hasExited()) {
+                HOSTS.remove(sessionId);
+            }
+        };
+
+        try {
+            token.linkToDeath(recipient, 0);
+        } catch (RemoteException e) {
+            // The client is already dead
+            Log.w(TAG, "linkToDeath", e);
+            recipient.binderDied();
+        }
     }
 
-    private void setWindowSize(long size) {
+    @Nullable
+    private static RishHost findHost(int sessionId) {
         int callingPid = Binder.getCallingPid();
 
-        RishHost host = HOSTS.get(callingPid);
+        RishHost host = null;
+        if (sessionId != -1) {
+            host = HOSTS.get(sessionId);
+        } else {
+            // Clients before session id is added, use the latest session of the calling process
+            for (RishHost h : HOSTS.values()) {
+                if (h.getCallingPid() == callingPid && (host == null || h.getSessionId() > host.getSessionId())) {
+                    host = h;
+                }
+            }
+        }
+
+        // Session ids are not secrets, so make sure the session belongs to the caller
+        if (host == null || host.getCallingPid() != callingPid) {
+            Log.d(TAG, "Not existing session " + sessionId + " created by " + callingPid);
+            return null;
+        }
+        return host;
+    }
+
+    private void setWindowSize(int sessionId, long size) {
+        RishHost host = findHost(sessionId);
         if (host == null) {
-            Log.d(TAG, "Not existing host created by " + callingPid);
             return;
         }
 
         host.setWindowSize(size);
     }
 
-    private int getExitCode() {
-        int callingPid = Binder.getCallingPid();
-
-        RishHost host = HOSTS.get(callingPid);
+    private int getExitCode(int sessionId) {
+        RishHost host = findHost(sessionId);
         if (host == null) {
-            Log.d(TAG, "Not existing host created by " + callingPid);
             return -1;
         }
 
-        return host.getExitCode();
+        int exitCode = host.getExitCode(EXIT_CODE_TIMEOUT_MILLIS);
+        if (exitCode != Integer.MAX_VALUE) {
+            // The client has got the exit code, the session is no longer needed
+            HOSTS.remove(host.getSessionId());
+        }
+        return exitCode;
     }
 
     public abstract void enforceCallingPermission(String func);
@@ -105,8 +252,34 @@ public abstract class RishService {
             String[] args = data.createStringArray();
             String[] env = data.createStringArray();
             String dir = data.readString();
-            createHost(args, env, dir, tty, stdin, stdout, stderr);
+            IBinder token = data.dataAvail() > 0 ? data.readStrongBinder() : null;
+            int hostFlags = data.dataAvail() > 0 ? data.readInt() : 0;
+            RishHost host = createHost(args, env, dir, tty, stdin, stdout, stderr, token, hostFlags);
+            reply.writeNoException();
+            reply.writeInt(host.getSessionId());
+            // Flags that are accepted
+            reply.writeInt((host.isCompress() ? RishConstants.FLAG_COMPRESS : 0)
+                    | (host.getExitCallback() != null ? RishConstants.FLAG_EXIT_CALLBACK : 0));
+            return true;
+        } else if (code == RishConfig.getTransactionCode(RishConfig.TRANSACTION_attachHost)) {
+            Log.d(TAG, "TRANSACTION_attachHost");
+
+            enforceCallingPermission("attachHost");
+
+            if (reply == null || (flags & IBinder.FLAG_ONEWAY) != 0) {
+                return true;
+            }
+
+            data.enforceInterface(RishConfig.getInterfaceToken());
+            int sessionId = data.readInt();
+            ParcelFileDescriptor stdin = data.readFileDescriptor();
+            ParcelFileDescriptor stdout = data.readFileDescriptor();
+            IBinder token = data.readStrongBinder();
+            int attachFlags = data.dataAvail() > 0 ? data.readInt() : 0;
+            int result = attachHost(sessionId, stdin, stdout, token, attachFlags);
             reply.writeNoException();
+            reply.writeInt(result);
+            reply.writeInt(result != -1 && (attachFlags & RishConstants.FLAG_EXIT_CALLBACK) != 0 ? RishConstants.FLAG_EXIT_CALLBACK : 0);
             return true;
         } else if (code == RishConfig.getTransactionCode(RishConfig.TRANSACTION_setWindowSize)) {
             Log.d(TAG, "TRANSACTION_setWindowSize");
@@ -115,7 +288,8 @@ public abstract class RishService {
 
             data.enforceInterface(RishConfig.getInterfaceToken());
             long size = data.readLong();
-            setWindowSize(size);
+            int sessionId = data.dataAvail() > 0 ? data.readInt() : -1;
+            setWindowSize(sessionId, size);
             if (reply != null) {
                 reply.writeNoException();
             }
@@ -126,7 +300,8 @@ public abstract class RishService {
             enforceCallingPermission("getExitCode");
 
             data.enforceInterface(RishConfig.getInterfaceToken());
-            int exitCode = getExitCode();
+            int sessionId = data.dataAvail() > 0 ? data.readInt() : -1;
+            int exitCode = getExitCode(sessionId);
             if (reply != null) {
                 reply.writeNoException();
                 reply.writeInt(exitCode);
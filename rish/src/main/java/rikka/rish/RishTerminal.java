@@ -1,5 +1,7 @@
 package rikka.rish;
 
+import android.os.Binder;
+import android.os.IBinder;
 import android.os.Parcel;
 import android.os.RemoteException;
 import android.system.ErrnoException;
@@ -11,11 +13,17 @@ import java.io.FileDescriptor;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rikka.shizuku.ShizukuParcelPool;
 
 public class RishTerminal {
 
     private static final String TAG = "RishTerminal";
 
+    private static final long EXIT_CODE_TIMEOUT_MILLIS = 1000;
+
     public static int getFd(FileDescriptor[] fileDescriptor, int i) {
         if (fileDescriptor == null) {
             return -1;
@@ -37,18 +45,79 @@ public class RishTerminal {
     private FileDescriptor[] stderr;
     private int ttyFd = -1;
     private int exitCode;
+    private int sessionId = -1;
+    private int flags;
+
+    // Pushed by the server through the token binder when the process exits
+    private final CountDownLatch exitLatch = new CountDownLatch(1);
+    private volatile int pushedExitCode = -1;
+
+    // The server removes the session when this binder is dead, and pushes the exit code to it
+    private final Binder token = new Binder() {
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            if (code == RishConfig.CALLBACK_TRANSACTION_onExit) {
+                data.enforceInterface(RishConfig.getInterfaceToken());
+                pushedExitCode = data.readInt();
+                exitLatch.countDown();
+                return true;
+            }
+            return super.onTransact(code, data, reply, flags);
+        }
+    };
 
     public RishTerminal(String[] argv) throws ErrnoException, RemoteException {
         this.argv = argv;
         this.tty = prepare();
 
-        createHost();
+        String attach = System.getenv("RISH_ATTACH");
+        if (attach != null) {
+            attachHost(Integer.parseInt(attach));
+        } else {
+            createHost();
+        }
+    }
+
+    private void attachHost(int sessionId) throws ErrnoException, RemoteException {
+        Log.d(TAG, "attachHost " + sessionId);
+        Parcel data = ShizukuParcelPool.obtain();
+        Parcel reply = ShizukuParcelPool.obtain();
+
+        try {
+            data.writeInterfaceToken(RishConfig.getInterfaceToken());
+            data.writeInt(sessionId);
+            stdin = Os.pipe();
+            data.writeFileDescriptor(stdin[0]);
+            stdout = Os.pipe();
+            data.writeFileDescriptor(stdout[1]);
+            data.writeStrongBinder(token);
+            // RISH_ATTACH_FORCE=1 takes over the session even if its client is still alive
+            data.writeInt(RishConstants.FLAG_EXIT_CALLBACK
+                    | ("1".equals(System.getenv("RISH_ATTACH_FORCE")) ? RishConstants.FLAG_FORCE_ATTACH : 0));
+            RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_attachHost), data, reply, 0);
+            reply.readException();
+            this.sessionId = reply.dataAvail() > 0 ? reply.readInt() : -1;
+            if (reply.dataAvail() > 0) {
+                flags = reply.readInt();
+            }
+        } finally {
+            ShizukuParcelPool.recycle(data);
+            ShizukuParcelPool.recycle(reply);
+
+            closeFd(stdin, 0);
+            closeFd(stdout, 1);
+        }
+
+        if (this.sessionId == -1) {
+            throw new IllegalStateException("Session " + sessionId + " does not exist, is not detachable, or is attached by"
+                    + " another client (set RISH_ATTACH_FORCE=1 to take it over)");
+        }
     }
 
     private void createHost() throws ErrnoException, RemoteException {
         Log.d(TAG, "createHost");
-        Parcel data = Parcel.obtain();
-        Parcel reply = Parcel.obtain();
+        Parcel data = ShizukuParcelPool.obtain();
+        Parcel reply = ShizukuParcelPool.obtain();
 
         List<String> list = new ArrayList<>();
         for (Map.Entry<String, String> entry : System.getenv().entrySet()) {
@@ -72,11 +141,28 @@ public class RishTerminal {
             data.writeStringArray(argv);
             data.writeStringArray(env);
             data.writeString(dir);
+            data.writeStrongBinder(token);
+            int requestFlags = RishConstants.FLAG_EXIT_CALLBACK;
+            if ("1".equals(System.getenv("RISH_COMPRESS"))) {
+                requestFlags |= RishConstants.FLAG_COMPRESS;
+            }
+            data.writeInt(requestFlags);
             RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_createHost), data, reply, 0);
             reply.readException();
+            if (reply.dataAvail() > 0) {
+                sessionId = reply.readInt();
+            }
+            // Flags accepted by the server, old servers do not write it and do not compress
+            if (reply.dataAvail() > 0) {
+                flags = reply.readInt();
+            }
+            if (sessionId != -1 && "1".equals(System.getenv("RISH_DETACHABLE"))) {
+                System.err.println("rish: session " + sessionId + ", set RISH_ATTACH=" + sessionId + " to attach again");
+                System.err.flush();
+            }
         } finally {
-            data.recycle();
-            reply.recycle();
+            ShizukuParcelPool.recycle(data);
+            ShizukuParcelPool.recycle(reply);
 
             closeFd(stdin, 0);
             closeFd(stdout, 1);
@@ -87,54 +173,64 @@ public class RishTerminal {
     public void start() {
         Log.d(TAG, "start");
 
-        ttyFd = start(tty, getFd(stdin, 1), getFd(stdout, 0), getFd(stdout, 0));
+        ttyFd = start(tty, getFd(stdin, 1), getFd(stdout, 0), getFd(stderr, 0), (flags & RishConstants.FLAG_COMPRESS) != 0);
 
         if (ttyFd != -1) {
             Log.d(TAG, "waitForWindowSizeChange");
 
-            new Thread(() -> {
-                long size = waitForWindowSizeChange(ttyFd);
-
-                try {
-                    setWindowSize(size);
-                } catch (Throwable e) {
-                    Log.w(TAG, Log.getStackTraceString(e));
+            Thread thread = new Thread(() -> {
+                long lastSize = 0;
+                long size;
+                // Returns the initial size first, then blocks until the size is changed
+                while ((size = waitForWindowSizeChange(ttyFd)) != -1) {
+                    if (size == lastSize) {
+                        continue;
+                    }
+                    lastSize = size;
+
+                    try {
+                        setWindowSize(size);
+                    } catch (Throwable e) {
+                        Log.w(TAG, Log.getStackTraceString(e));
+                    }
                 }
-            }).start();
+            }, "rish-winch");
+            thread.setDaemon(true);
+            thread.start();
         }
     }
 
     private void setWindowSize(long size) throws RemoteException {
         Log.d(TAG, "setWindowSize");
 
-        Parcel data = Parcel.obtain();
-        Parcel reply = Parcel.obtain();
+        Parcel data = ShizukuParcelPool.obtain();
 
         try {
             data.writeInterfaceToken(RishConfig.getInterfaceToken());
             data.writeLong(size);
-            RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_setWindowSize), data, null, 0);
-            reply.readException();
+            data.writeInt(sessionId);
+            // Oneway transactions to the same binder are delivered in order, so the last size wins
+            RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_setWindowSize), data, null, IBinder.FLAG_ONEWAY);
         } finally {
-            data.recycle();
-            reply.recycle();
+            ShizukuParcelPool.recycle(data);
         }
     }
 
     private int requestExitCode() throws RemoteException {
         Log.d(TAG, "requestExitCode");
 
-        Parcel data = Parcel.obtain();
-        Parcel reply = Parcel.obtain();
+        Parcel data = ShizukuParcelPool.obtain();
+        Parcel reply = ShizukuParcelPool.obtain();
 
         try {
             data.writeInterfaceToken(RishConfig.getInterfaceToken());
-            RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_getExitCode), data, null, 0);
+            data.writeInt(sessionId);
+            RishConfig.getBinder().transact(RishConfig.getTransactionCode(RishConfig.TRANSACTION_getExitCode), data, reply, 0);
             reply.readException();
             return reply.readInt();
         } finally {
-            data.recycle();
-            reply.recycle();
+            ShizukuParcelPool.recycle(data);
+            ShizukuParcelPool.recycle(reply);
         }
     }
 
@@ -142,6 +238,17 @@ public class RishTerminal {
         Log.d(TAG, "waitFor");
 
         waitForProcessExit();
+
+        // stdout may be closed a little earlier than the process is reaped, fallback to ask the server
+        try {
+            if ((flags & RishConstants.FLAG_EXIT_CALLBACK) != 0 && exitLatch.await(EXIT_CODE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                exitCode = pushedExitCode;
+                return exitCode;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
         try {
             exitCode = requestExitCode();
         } catch (Throwable e) {
@@ -157,7 +264,7 @@ public class RishTerminal {
 
     private static native byte prepare();
 
-    private static native int start(byte tty, int stdin, int stdout, int stderr);
+    private static native int start(byte tty, int stdin, int stdout, int stderr, boolean compressed);
 
     private static native long waitForWindowSizeChange(int fd);
 
@@ -6,12 +6,40 @@ import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP_PREFIX;
 
 public class ShizukuApiConstants {
 
-    public static final int SERVER_VERSION = 12;
+    public static final int SERVER_VERSION = 13;
 
     // binder
     public static final String BINDER_DESCRIPTOR = "moe.shizuku.server.IShizukuService";
     public static final int BINDER_TRANSACTION_transact = 1;
 
+    /**
+     * Execute multiple binder calls in one transaction.
+     * <p>
+     * data:
+     * <br><code>writeInterfaceToken(BINDER_DESCRIPTOR)</code>
+     * <br><code>writeInt(count)</code>
+     * <br>then for each call:
+     * <br><code>writeStrongBinder(binder)</code>
+     * <br><code>writeInt(code)</code>
+     * <br><code>writeInt(size)</code>
+     * <br><code>appendFrom(data of the call, 0, size)</code>, raw bytes without padding or length prefix
+     * <p>
+     * reply:
+     * <br><code>writeNoException()</code>, or <code>writeException(e)</code> (e.g., {@link SecurityException} if the
+     * caller is not permitted) and nothing else if the whole batch is rejected
+     * <br>then for each call, in the same order:
+     * <br><code>writeInt(size)</code>
+     * <br><code>appendFrom(reply of the call, 0, size)</code>
+     * <p>
+     * Calls are executed one by one at remote, flags of each call are 0.
+     * <p>
+     * Transaction codes of aidl methods are <code>FIRST_CALL_TRANSACTION + id</code>, this is id 17 which is reserved
+     * in IShizukuService.aidl.
+     *
+     * @since added from version 13
+     */
+    public static final int BINDER_TRANSACTION_transactBatch = 18;
+
     // user service
     @RestrictTo(LIBRARY_GROUP_PREFIX)
     public static final int USER_SERVICE_TRANSACTION_destroy = 16777115;
@@ -25,6 +53,21 @@ public class ShizukuApiConstants {
     @RestrictTo(LIBRARY_GROUP_PREFIX)
     public static final String USER_SERVICE_ARG_TOKEN = "shizuku:user-service-arg-token";
 
+    // remote process
+    public static final String PROCESS_ARG_REDIRECT_ERROR_STREAM = "shizuku:process-arg-redirect-error-stream";
+    public static final String PROCESS_ARG_CPU_TIME_LIMIT = "shizuku:process-arg-cpu-time-limit";
+    public static final String PROCESS_ARG_NICE = "shizuku:process-arg-nice";
+    public static final String PROCESS_ARG_CGROUP = "shizuku:process-arg-cgroup";
+
+    // remote process resource usage, times are in milliseconds
+    public static final String PROCESS_USAGE_USER_TIME = "shizuku:process-usage-user-time";
+    public static final String PROCESS_USAGE_SYSTEM_TIME = "shizuku:process-usage-system-time";
+    public static final String PROCESS_USAGE_MAX_RSS_KB = "shizuku:process-usage-max-rss-kb";
+    public static final String PROCESS_USAGE_WALL_TIME = "shizuku:process-usage-wall-time";
+
+    // file transfer
+    public static final String FILE_TRANSFER_ARG_MODE = "shizuku:file-transfer-arg-mode";
+
     // attach client
     public static final String ATTACH_REPLY_SERVER_VERSION = "shizuku:attach-reply-version";
     public static final String ATTACH_REPLY_SERVER_PATCH_VERSION = "shizuku:attach-reply-patch-version";